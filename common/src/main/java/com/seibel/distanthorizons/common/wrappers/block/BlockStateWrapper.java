@@ -31,6 +31,7 @@ import org.apache.logging.log4j.Logger;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 #if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
 import net.minecraft.core.Registry;
@@ -62,6 +63,15 @@ public class BlockStateWrapper implements IBlockStateWrapper
 	private static final Logger LOGGER = DhLoggerBuilder.getLogger();
 	
     public static final ConcurrentHashMap<BlockState, BlockStateWrapper> WRAPPER_BY_BLOCK_STATE = new ConcurrentHashMap<>();
+	/** 
+	 * Indexed by each BlockState's {@link Block#BLOCK_STATE_REGISTRY} ID. <br>
+	 * Used so the hot path is just an array lookup instead of a {@link ConcurrentHashMap} lookup. <br><br>
+	 * 
+	 * New wrappers are stored directly into the array, 
+	 * it's only copied if an ID doesn't fit (IE the registry grew), see {@link BlockStateWrapper#growWrapperArray(int)}.
+	 */
+	private static volatile AtomicReferenceArray<BlockStateWrapper> wrapperByBlockStateId = new AtomicReferenceArray<>(0);
+	private static final Object WRAPPER_ARRAY_LOCK = new Object();
 	
 	public static final String AIR_STRING = "AIR";
 	public static final BlockStateWrapper AIR = new BlockStateWrapper(null, null);
@@ -100,15 +110,72 @@ public class BlockStateWrapper implements IBlockStateWrapper
 		}
 		
 		
-		if (WRAPPER_BY_BLOCK_STATE.containsKey(blockState))
+		int id = Block.BLOCK_STATE_REGISTRY.getId(blockState);
+		AtomicReferenceArray<BlockStateWrapper> wrappers = wrapperByBlockStateId;
+		if (id >= 0 && id < wrappers.length())
 		{
-			return WRAPPER_BY_BLOCK_STATE.get(blockState);
+			BlockStateWrapper wrapper = wrappers.get(id);
+			// the BlockState is checked in case the IDs were re-mapped (IE a modded server synced a different registry)
+			if (wrapper != null && wrapper.blockState == blockState)
+			{
+				return wrapper;
+			}
 		}
-		else
+		
+		return getOrCreateWrapper(blockState, id, levelWrapper);
+	}
+	
+	private static BlockStateWrapper getOrCreateWrapper(BlockState blockState, int id, ILevelWrapper levelWrapper)
+	{
+		BlockStateWrapper wrapper = WRAPPER_BY_BLOCK_STATE.get(blockState);
+		if (wrapper == null)
 		{
 			BlockStateWrapper newWrapper = new BlockStateWrapper(blockState, levelWrapper);
-			WRAPPER_BY_BLOCK_STATE.put(blockState, newWrapper);
-			return newWrapper;
+			wrapper = WRAPPER_BY_BLOCK_STATE.putIfAbsent(blockState, newWrapper);
+			if (wrapper == null)
+			{
+				wrapper = newWrapper;
+			}
+		}
+		
+		// unregistered BlockStates (which shouldn't normally happen) can only be found via the map
+		if (id >= 0)
+		{
+			AtomicReferenceArray<BlockStateWrapper> wrappers = wrapperByBlockStateId;
+			if (id >= wrappers.length())
+			{
+				wrappers = growWrapperArray(id);
+			}
+			
+			// if the array is grown at the same time this may be stored into the old array,
+			// that's fine since the next lookup will find the wrapper in the map and store it again
+			wrappers.set(id, wrapper);
+		}
+		
+		return wrapper;
+	}
+	
+	/** @return an array that can hold the given ID */
+	private static AtomicReferenceArray<BlockStateWrapper> growWrapperArray(int id)
+	{
+		synchronized (WRAPPER_ARRAY_LOCK)
+		{
+			AtomicReferenceArray<BlockStateWrapper> oldWrappers = wrapperByBlockStateId;
+			if (id < oldWrappers.length())
+			{
+				// another thread already grew the array
+				return oldWrappers;
+			}
+			
+			// size the array to fit every registered BlockState so it (generally) only needs to grow once
+			int newLength = Math.max(id + 1, Block.BLOCK_STATE_REGISTRY.size());
+			AtomicReferenceArray<BlockStateWrapper> newWrappers = new AtomicReferenceArray<>(newLength);
+			for (int i = 0; i < oldWrappers.length(); i++)
+			{
+				newWrappers.set(i, oldWrappers.get(i));
+			}
+			wrapperByBlockStateId = newWrappers;
+			return newWrappers;
 		}
 	}
 	
@@ -21,14 +21,19 @@ package com.seibel.distanthorizons.common.wrappers.chunk;
 
 import com.seibel.distanthorizons.coreapi.util.BitShiftUtil;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Compact, efficient storage for light levels. 
  * all blocks only take up 4 bits in total, 
  * and if a 16x16x16 area is detected to have the same light level in all positions,
- * then we store a single byte for that light level, instead of 2 kilobytes.
+ * then we store a single byte for that light level, instead of 2 kilobytes. <br><br>
+ * 
+ * Non-constant section data is pooled,
+ * call {@link ChunkLightStorage#release()} once the storage is no longer needed
+ * so the data can be re-used.
  * 
  * @author Builderb0y
 */
@@ -100,6 +105,54 @@ public class ChunkLightStorage
 		lightSection.set(x, y, z, lightLevel);
 	}
 	
+	/** @return the number of 16 block tall sections in this storage */
+	public int getSectionCount() { return BitShiftUtil.divideByPowerOfTwo(this.maxY - this.minY, 4); }
+	
+	/**
+	 * Replaces the given section's light levels with data in Minecraft's DataLayer nibble format
+	 * (index = y << 8 | z << 4 | x, two light levels per byte, even X positions in the low nibble).
+	 * 
+	 * @param sectionIndex 0 is the section starting at {@link ChunkLightStorage#minY}
+	 * @param packedData must be at least 2048 bytes long
+	 */
+	public void setPackedSection(int sectionIndex, byte[] packedData)
+	{
+		if (this.lightSections == null)
+		{
+			this.lightSections = new LightSection[this.getSectionCount()];
+		}
+		
+		LightSection oldLightSection = this.lightSections[sectionIndex];
+		if (oldLightSection != null)
+		{
+			oldLightSection.release();
+		}
+		this.lightSections[sectionIndex] = LightSection.unpack(packedData);
+	}
+	
+	/** 
+	 * Returns any non-constant section data to the pool. <br>
+	 * This storage will be empty afterwards, so this should only be called once the light levels are no longer needed.
+	 */
+	public void release()
+	{
+		if (this.lightSections == null)
+		{
+			return;
+		}
+		
+		for (int i = 0; i < this.lightSections.length; i++)
+		{
+			LightSection lightSection = this.lightSections[i];
+			if (lightSection != null)
+			{
+				lightSection.release();
+				this.lightSections[i] = null;
+			}
+		}
+		this.lightSections = null;
+	}
+	
 	
 	
 	//================//
@@ -108,15 +161,18 @@ public class ChunkLightStorage
 	
 	public static class LightSection
 	{
+		/** 16 x 16 x 16 light levels at 4 bits each */
+		public static final int PACKED_BYTE_COUNT = 2048;
+		
 		public byte constantValue;
+		/** null if this section is a constant value */
 		public long[] data;
+		/** null if this section is a constant value */
 		public short[] counts;
 		
 		public LightSection(int initialValue)
 		{
 			this.constantValue = (byte) (initialValue);
-			this.counts = new short[16];
-			this.counts[initialValue] = 16 * 16 * 16;
 		}
 		
 		public int get(int x, int y, int z)
@@ -146,6 +202,8 @@ public class ChunkLightStorage
 				//if we are a constant value and need to change something,
 				//then that means we need to convert to a non-constant value.
 				this.data = DataRecycler.get();
+				this.counts = new short[16];
+				this.counts[oldLightLevel] = 16 * 16 * 16;
 				
 				//repeat oldLightLevel 16 times as a bit pattern.
 				long payload = oldLightLevel;
@@ -187,30 +245,100 @@ public class ChunkLightStorage
 			if (++this.counts[lightLevel] == 4096)
 			{
 				this.constantValue = (byte) (lightLevel);
+				this.release();
+			}
+		}
+		
+		/** @see ChunkLightStorage#setPackedSection(int, byte[]) */
+		public static LightSection unpack(byte[] packedData)
+		{
+			// most saved sections are either completely lit or completely dark
+			byte firstByte = packedData[0];
+			boolean isConstant = ((firstByte & 15) == ((firstByte >> 4) & 15));
+			for (int i = 1; isConstant && i < PACKED_BYTE_COUNT; i++)
+			{
+				isConstant = (packedData[i] == firstByte);
+			}
+			
+			LightSection lightSection = new LightSection(firstByte & 15);
+			if (isConstant)
+			{
+				return lightSection;
+			}
+			
+			lightSection.data = DataRecycler.get();
+			lightSection.counts = new short[16];
+			lightSection.constantValue = -1;
+			for (int z = 0; z < 16; z++)
+			{
+				for (int x = 0; x < 16; x++)
+				{
+					long bits = 0;
+					for (int y = 0; y < 16; y++)
+					{
+						int packedByte = packedData[((y << 8) | (z << 4) | x) >> 1];
+						int lightLevel = ((x & 1) == 0) ? (packedByte & 15) : ((packedByte >> 4) & 15);
+						bits |= ((long) lightLevel) << (y << 2);
+						lightSection.counts[lightLevel]++;
+					}
+					lightSection.data[(z << 4) | x] = bits;
+				}
+			}
+			return lightSection;
+		}
+		
+		/** returns this section's data to the pool, should only be called if this section is a constant value or no longer needed */
+		void release()
+		{
+			if (this.data != null)
+			{
 				DataRecycler.reclaim(this.data);
 				this.data = null;
+				this.counts = null;
 			}
 		}
 		
 	}
 	
+	/** 
+	 * A single pool shared by every thread, 
+	 * since the arrays are generally filled on one thread (IE a lighting thread)
+	 * and released on another (IE the thread that finishes the generation event). <br>
+	 * The pool is bounded so releasing a large number of chunks at once can't hold onto an unbounded amount of memory.
+	 */
 	static class DataRecycler
 	{
-		private static final ArrayList<long[]> recycled = new ArrayList<>(256);
+		private static final int MAX_POOLED_ARRAYS = 1024;
+		
+		private static final ConcurrentLinkedQueue<long[]> RECYCLED = new ConcurrentLinkedQueue<>();
+		/** tracked separately since {@link ConcurrentLinkedQueue#size()} isn't a constant time operation */
+		private static final AtomicInteger RECYCLED_COUNT = new AtomicInteger(0);
+		
 		
-		static synchronized long[] get()
+		static long[] get()
 		{
-			if (recycled.isEmpty())
+			long[] data = RECYCLED.poll();
+			if (data == null)
 			{
 				return new long[256];
 			}
+			
+			RECYCLED_COUNT.decrementAndGet();
+			return data;
+		}
+		
+		static void reclaim(long[] data)
+		{
+			if (RECYCLED_COUNT.incrementAndGet() <= MAX_POOLED_ARRAYS)
+			{
+				RECYCLED.add(data);
+			}
 			else
 			{
-				return recycled.remove(recycled.size() - 1);
+				RECYCLED_COUNT.decrementAndGet();
 			}
 		}
 		
-		static synchronized void reclaim(long[] data) { if (recycled.size() < 256) recycled.add(data); }
 	}
 	
 }
\ No newline at end of file
@@ -386,6 +386,36 @@ public class ChunkWrapper implements IChunkWrapper
 		return this.skyLightStorage;
 	}
 	
+	/** 
+	 * Replaces the DH light with the light levels Minecraft saved with the chunk
+	 * and marks this chunk as DH light correct, so DH's lighting engine doesn't have to re-light it.
+	 */
+	public void setDhLightFromSave(ChunkLightStorage blockLightStorage, ChunkLightStorage skyLightStorage)
+	{
+		this.releaseDhLightStorage();
+		this.blockLightStorage = blockLightStorage;
+		this.skyLightStorage = skyLightStorage;
+		this.isDhLightCorrect = true;
+	}
+	
+	/** 
+	 * Returns the DH light storage to the shared pool. <br>
+	 * Should only be called once this chunk's DH lighting is no longer needed.
+	 */
+	public void releaseDhLightStorage()
+	{
+		if (this.blockLightStorage != null)
+		{
+			this.blockLightStorage.release();
+			this.blockLightStorage = null;
+		}
+		if (this.skyLightStorage != null)
+		{
+			this.skyLightStorage.release();
+			this.skyLightStorage = null;
+		}
+	}
+	
 	
 	@Override
 	public int getBlockLight(int relX, int y, int relZ)
@@ -25,6 +25,7 @@ import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiDistantGenerat
 import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
 import com.seibel.distanthorizons.common.wrappers.world.ServerLevelWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.*;
+import com.seibel.distanthorizons.core.api.internal.ServerApi;
 import com.seibel.distanthorizons.core.dataObjects.transformers.FullDataToRenderDataTransformer;
 import com.seibel.distanthorizons.core.generation.DhLightingEngine;
 import com.seibel.distanthorizons.core.level.IDhServerLevel;
@@ -40,13 +41,21 @@ import com.seibel.distanthorizons.core.wrapperInterfaces.worldGeneration.Abstrac
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
 
 import com.seibel.distanthorizons.common.wrappers.DependencySetupDoneCheck;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepBiomes;
@@ -55,21 +64,16 @@ import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepNoise
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepStructureReference;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepStructureStart;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSurface;
-
-#if MC_VER >= MC_1_19_4
-import net.minecraft.core.registries.Registries;
-#else
-import net.minecraft.core.Registry;
-#endif
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSyntheticCanopy;
 
 import net.minecraft.server.level.ServerLevel;
 import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.ChunkAccess;
 import net.minecraft.world.level.chunk.ChunkGenerator;
 import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.ImposterProtoChunk;
 import net.minecraft.world.level.chunk.LevelChunk;
 import net.minecraft.world.level.chunk.ProtoChunk;
-import net.minecraft.world.level.chunk.UpgradeData;
 import net.minecraft.world.level.chunk.storage.RegionFileStorage;
 import net.minecraft.world.level.levelgen.DebugLevelSource;
 import net.minecraft.world.level.levelgen.FlatLevelSource;
@@ -77,6 +81,7 @@ import net.minecraft.world.level.levelgen.Heightmap;
 import net.minecraft.world.level.levelgen.NoiseBasedChunkGenerator;
 import net.minecraft.nbt.CompoundTag;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 
 /*
 Total:                   3.135214124s
@@ -133,7 +138,8 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			}
 		}
 		
-		public void recordEvent(EventTimer event)
+		/** synchronized since events from multiple threads can record to the same calculator */
+		public synchronized void recordEvent(EventTimer event)
 		{
 			for (EventTimer.Event e : event.events)
 			{
@@ -145,7 +151,7 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			times.get(0).add(event.getTotalTimeNs());
 		}
 		
-		public String toString()
+		public synchronized String toString()
 		{
 			StringBuilder sb = new StringBuilder();
 			for (int i = 0; i < times.size(); i++)
@@ -162,18 +168,60 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 	
 	//=================Generation Step===================
 	
-	public final LinkedBlockingQueue<GenerationEvent> generationEventList = new LinkedBlockingQueue<>();
+	/** every event that hasn't finished yet, events are removed by their future's completion callback */
+	public final Set<GenerationEvent> generationEventSet = ConcurrentHashMap.newKeySet();
+	/** how many of the events in {@link BatchGenerationEnvironment#generationEventSet} were queued by a {@link BulkChunkImporter} */
+	private final AtomicInteger bulkImportEventCount = new AtomicInteger(0);
+	/** events that completed exceptionally since the last {@link BatchGenerationEnvironment#updateAllFutures()} call */
+	private final ConcurrentLinkedQueue<GenerationEvent> failedEvents = new ConcurrentLinkedQueue<>();
+	private final GenerationTimeoutWheel timeoutWheel = new GenerationTimeoutWheel();
+	/** re-used by {@link BatchGenerationEnvironment#updateAllFutures()} */
+	private final ArrayList<GenerationEvent> expiredEvents = new ArrayList<>();
 	public final GlobalParameters params;
 	public final StepStructureStart stepStructureStart = new StepStructureStart(this);
 	public final StepStructureReference stepStructureReference = new StepStructureReference(this);
 	public final StepBiomes stepBiomes = new StepBiomes(this);
 	public final StepNoise stepNoise = new StepNoise(this);
 	public final StepSurface stepSurface = new StepSurface(this);
+	public final StepSyntheticCanopy stepSyntheticCanopy = new StepSyntheticCanopy(this);
 	public final StepFeatures stepFeatures = new StepFeatures(this);
+	/** determines which events should be run first and which should be canceled */
+	public final GenerationEventPrioritizer eventPrioritizer = new GenerationEventPrioritizer();
+	/** created in the constructor since the stages depend on the steps and the level's generator */
+	private final GenerationStage[] pipelineStages;
+	/** events that have been requested but haven't started the pipeline yet, synchronized on itself */
+	private final GenerationPriorityQueue<GenerationEvent> eventsWaitingForPipeline = new GenerationPriorityQueue<>(
+			this.eventPrioritizer::getPriority, this.eventPrioritizer::getSnapshotVersion, this::tryDropWaitingEvent);
+	private final AtomicInteger eventsInPipelineCount = new AtomicInteger(0);
+	/** limits how large a single event can be, larger requests are split into multiple events */
+	public final BatchSizeController batchSizeController = new BatchSizeController();
+	/** created in the constructor since it depends on the {@link GlobalParameters} */
+	public final EmptyChunkPool emptyChunkPool;
+	/** structure starts and references from previous events and sessions */
+	public final StructureStartCache structureStartCache;
+	/** determines how far each request is generated based on its distance to the players, created in the constructor since it's saved with the level */
+	public final GenerationDepthTiers depthTiers;
+	/** null if no bulk import has been started */
+	private volatile BulkChunkImporter bulkChunkImporter = null;
+	/** 
+	 * Bulk imports are only started once per session, see {@link BatchGenerationEnvironment#updateAllFutures()}. <br>
+	 * Regions that were imported in a previous session are skipped by the importer.
+	 */
+	private boolean bulkImportStarted = false;
+	/** runs the {@link BulkChunkImporter}'s driver task, null until the first import is started. Shut down by {@link BatchGenerationEnvironment#stop()} */
+	private ExecutorService bulkImportExecutor = null;
+	/** 
+	 * The thread pool given with the most recent generation request,
+	 * used for work that isn't tied to a request (IE bulk imports). <br>
+	 * Null until the first request is received.
+	 */
+	private volatile ExecutorService lastWorldGeneratorThreadPool = null;
 	public boolean unsafeThreadingRecorded = false;
 	public static final long EXCEPTION_TIMER_RESET_TIME = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
 	public static final int EXCEPTION_COUNTER_TRIGGER = 20;
 	public static final int RANGE_TO_RANGE_EMPTY_EXTENSION = 1;
+	/** chunks from a timed out event that haven't reached this status aren't worth emitting, IE they'd just be bare stone */
+	public static final ChunkStatus MIN_SALVAGE_STATUS = ChunkStatus.SURFACE;
 	public int unknownExceptionCount = 0;
 	public long lastExceptionTriggerTime = 0;
 	
@@ -193,6 +241,12 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		return cache;
 	}
 	
+	/** 
+	 * Used to light or decorate an event's chunks in parallel, see {@link BatchGenerationEnvironment#lightChunksInParallel}. <br>
+	 * Only created when first needed and re-created if the world generator thread count changes.
+	 */
+	private static volatile ForkJoinPool parallelStepPool = null;
+	
 	public static ThreadLocal<Boolean> isDistantGeneratorThread = new ThreadLocal<>();
 	public static ThreadLocal<Object> onDistantGenerationMixinData = new ThreadLocal<>();
 	public static boolean isCurrentThreadDistantGeneratorThread() { return (isDistantGeneratorThread.get() != null); }
@@ -284,6 +338,10 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		}
 		
 		this.params = new GlobalParameters(serverlevel);
+		this.emptyChunkPool = new EmptyChunkPool(this.params);
+		this.structureStartCache = new StructureStartCache(this.params, serverlevel.getServerLevelWrapper().getSaveFolder());
+		this.depthTiers = new GenerationDepthTiers(serverlevel.getServerLevelWrapper().getSaveFolder());
+		this.pipelineStages = this.createPipelineStages();
 	}
 	
 	
@@ -312,47 +370,95 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		}
 		
 		
-		// Update all current out standing jobs
-		Iterator<GenerationEvent> iter = this.generationEventList.iterator();
-		while (iter.hasNext())
+		// updateAllFutures is generally called on the server thread, which is the safest place to read the player list.
+		// Generator threads only read the published snapshot.
+		this.eventPrioritizer.tryUpdateSnapshot(this.params.level);
+		synchronized (this.eventsWaitingForPipeline)
+		{
+			// cancels any waiting events that are now too far away, even if no event finishes to trigger a poll
+			this.eventsWaitingForPipeline.rekeyIfStale();
+		}
+		
+		// bulk imports aren't tied to any request, so they're started here once a thread pool is known
+		ExecutorService worldGeneratorThreadPool = this.lastWorldGeneratorThreadPool;
+		if (!this.bulkImportStarted
+			&& worldGeneratorThreadPool != null
+			&& DhWorldGenSettings.importExistingChunks)
+		{
+			this.bulkImportStarted = true;
+			this.startBulkImport(worldGeneratorThreadPool);
+		}
+		
+		// re-generate any requests that were stopped early now that a player is closer to them,
+		// their original requests have already completed so the chunks are sent to the level directly
+		if (worldGeneratorThreadPool != null)
+		{
+			for (GenerationDepthTiers.PendingUpgrade upgrade : this.depthTiers.pollUpgradesInRange(this.eventPrioritizer))
+			{
+				this.queueRequest(upgrade.minX, upgrade.minZ, upgrade.genSize, upgrade.requestedStep, worldGeneratorThreadPool, this::submitChunkToLevel);
+			}
+			this.depthTiers.trySaveAsync(worldGeneratorThreadPool);
+		}
+		
+		
+		// completed events remove themselves, only the failed ones need to be handled here
+		GenerationEvent failedEvent;
+		while ((failedEvent = this.failedEvents.poll()) != null)
+		{
+			try
+			{
+				failedEvent.future.get(); // Should throw exception
+				LodUtil.assertNotReach();
+			}
+			catch (Exception e)
+			{
+				this.unknownExceptionCount++;
+				this.lastExceptionTriggerTime = System.nanoTime();
+				EVENT_LOGGER.error("Batching World Generator event ["+failedEvent+"] threw an exception: "+e.getMessage(), e);
+			}
+		}
+		
+		
+		// only check the events whose deadline may have passed
+		long timeoutNs = TimeUnit.NANOSECONDS.convert(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS);
+		long currentTimeNs = System.nanoTime();
+		this.timeoutWheel.advance(currentTimeNs, this.expiredEvents);
+		for (GenerationEvent event : this.expiredEvents)
 		{
-			GenerationEvent event = iter.next();
 			if (event.future.isDone())
 			{
-				if (event.future.isCompletedExceptionally() && !event.future.isCancelled())
-				{
-					try
-					{
-						event.future.get(); // Should throw exception
-						LodUtil.assertNotReach();
-					}
-					catch (Exception e)
-					{
-						this.unknownExceptionCount++;
-						this.lastExceptionTriggerTime = System.nanoTime();
-						EVENT_LOGGER.error("Batching World Generator event ["+event+"] threw an exception: "+e.getMessage(), e);
-					}
-				}
-				
-				iter.remove();
+				continue;
 			}
-			else if (event.hasTimeout(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS))
+			
+			// the timeout is refreshed while the event runs and doesn't apply while it's queued,
+			// so the event may need more time
+			long timeoutTime = event.timeoutTime;
+			if (timeoutTime == -1 || currentTimeNs - timeoutTime <= timeoutNs)
 			{
-				EVENT_LOGGER.error("Batching World Generator: " + event + " timed out and terminated!");
-				EVENT_LOGGER.info("Dump PrefEvent: " + event.timer);
-				try
-				{
-					if (!event.terminate())
-					{
-						EVENT_LOGGER.error("Failed to terminate the stuck generation event!");
-					}
-				}
-				finally
+				long startTimeNs = (timeoutTime == -1) ? currentTimeNs : timeoutTime;
+				this.timeoutWheel.schedule(event, startTimeNs + timeoutNs);
+				continue;
+			}
+			
+			EVENT_LOGGER.error("Batching World Generator: " + event + " timed out and terminated!");
+			EVENT_LOGGER.info("Dump PrefEvent: " + event.timer);
+			
+			// the chunks can't be salvaged here since the stuck stage may still be modifying them,
+			// the stage's thread will salvage them once it has been interrupted and exits, see onEventStopped()
+			event.salvageRequested = true;
+			try
+			{
+				if (!event.terminate())
 				{
-					iter.remove();
+					EVENT_LOGGER.error("Failed to terminate the stuck generation event!");
 				}
 			}
+			finally
+			{
+				this.generationEventSet.remove(event);
+			}
 		}
+		this.expiredEvents.clear();
 		
 		if (this.unknownExceptionCount > EXCEPTION_COUNTER_TRIGGER)
 		{
@@ -362,25 +468,10 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		}
 	}
 	
-	private static ProtoChunk EmptyChunk(ServerLevel level, ChunkPos chunkPos)
-	{
-		return new ProtoChunk(chunkPos, UpgradeData.EMPTY
-					#if MC_VER >= MC_1_17_1 , level #endif
-					#if MC_VER >= MC_1_18_2 , level.registryAccess().registryOrThrow(
-						#if MC_VER < MC_1_19_4
-				Registry.BIOME_REGISTRY
-						#else
-				Registries.BIOME
-						#endif
-		), null #endif
-		);
-		
-	}
+	private ProtoChunk EmptyChunk(ChunkPos chunkPos) { return this.emptyChunkPool.create(chunkPos); }
 	
 	public ChunkAccess loadOrMakeChunk(ChunkPos chunkPos)
 	{
-		ServerLevel level = this.params.level;
-		
 		CompoundTag chunkData = null;
 		try
 		{
@@ -388,18 +479,24 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			// it can throw EOFExceptions that are caught and logged by Minecraft
 			//chunkData = level.getChunkSource().chunkMap.readChunk(chunkPos);
 			
-			RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
-			RegionFileStorageExternalCache cache = this.getOrCreateRegionFileCache(storage);
-			chunkData = cache.read(chunkPos);
+			chunkData = this.getRegionFileCache().read(chunkPos);
 		}
 		catch (Exception e)
 		{
 			LOAD_LOGGER.error("DistantHorizons: Couldn't load or make chunk " + chunkPos + ". Error: " + e.getMessage(), e);
 		}
 		
+		return this.makeChunk(chunkPos, chunkData);
+	}
+	
+	/** @param chunkData null if the chunk doesn't exist on disk */
+	public ChunkAccess makeChunk(ChunkPos chunkPos, @Nullable CompoundTag chunkData)
+	{
+		ServerLevel level = this.params.level;
+		
 		if (chunkData == null)
 		{
-			return EmptyChunk(level, chunkPos);
+			return this.EmptyChunk(chunkPos);
 		}
 		else
 		{
@@ -417,9 +514,89 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 					"Error: ["+e.getMessage()+"]."
 					, e);
 				
-				return EmptyChunk(level, chunkPos);
+				return this.EmptyChunk(chunkPos);
+			}
+		}
+	}
+	
+	private RegionFileStorageExternalCache getRegionFileCache()
+	{
+		RegionFileStorage storage = this.params.level.getChunkSource().chunkMap.worker.storage;
+		return this.getOrCreateRegionFileCache(storage);
+	}
+	
+	/** 
+	 * Reads every chunk in the given area in one batch, 
+	 * this is much faster than reading each chunk individually when the area has already been explored.
+	 */
+	private RegionFileBatchReader.BatchReadResult preloadChunkData(int minChunkX, int minChunkZ, int width)
+	{
+		ArrayList<ChunkPos> chunkPosList = new ArrayList<>(width * width);
+		for (int z = 0; z < width; z++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				chunkPosList.add(new ChunkPos(minChunkX + x, minChunkZ + z));
+			}
+		}
+		
+		try
+		{
+			return RegionFileBatchReader.readChunks(this.getRegionFileCache().getStorageFolderPath(), chunkPosList);
+		}
+		catch (Exception e)
+		{
+			// each chunk will be read individually instead
+			LOAD_LOGGER.warn("DistantHorizons: Unable to batch load chunks at ["+minChunkX+","+minChunkZ+"]. Error: " + e.getMessage(), e);
+			return new RegionFileBatchReader.BatchReadResult();
+		}
+	}
+	
+	/** 
+	 * Only reads the requested chunks if every one of them has been fully generated,
+	 * checking the region file headers first so unexplored areas don't read any chunk data.
+	 * 
+	 * @return null if any of the requested chunks still need to be generated
+	 */
+	@Nullable
+	private RegionFileBatchReader.BatchReadResult tryReadFullChunks(GenerationEvent genEvent)
+	{
+		ArrayList<ChunkPos> chunkPosList = new ArrayList<>(genEvent.size * genEvent.size);
+		for (int z = 0; z < genEvent.size; z++)
+		{
+			for (int x = 0; x < genEvent.size; x++)
+			{
+				chunkPosList.add(new ChunkPos(genEvent.minPos.x + x, genEvent.minPos.z + z));
+			}
+		}
+		
+		RegionFileBatchReader.BatchReadResult readResult;
+		try
+		{
+			Path storageFolder = this.getRegionFileCache().getStorageFolderPath();
+			if (!RegionFileBatchReader.allChunksExist(storageFolder, chunkPosList))
+			{
+				return null;
+			}
+			
+			readResult = RegionFileBatchReader.readChunks(storageFolder, chunkPosList);
+		}
+		catch (Exception e)
+		{
+			// the normal setup will read each chunk individually if needed
+			LOAD_LOGGER.warn("DistantHorizons: Unable to check for existing chunks at ["+genEvent.minPos+"]. Error: " + e.getMessage(), e);
+			return null;
+		}
+		
+		for (ChunkPos chunkPos : chunkPosList)
+		{
+			CompoundTag chunkData = readResult.chunkDataByPos.get(chunkPos.toLong());
+			if (chunkData == null || !ChunkLoader.isFullChunk(chunkData))
+			{
+				return null;
 			}
 		}
+		return readResult;
 	}
 	
 	private static <T> ArrayGridList<T> GetCutoutFrom(ArrayGridList<T> total, int border)
@@ -432,261 +609,782 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		return GetCutoutFrom(total, MaxBorderNeeded - BorderNeeded.get(step));
 	}
 	
-	public void generateLodFromList(GenerationEvent genEvent) throws InterruptedException
+	/** @return how many border chunks surround the requested chunks in the event's {@link GenerationEvent#chunkWrapperList} */
+	private static int getBorderWidth(GenerationEvent genEvent) { return genEvent.isImportOnly ? 0 : MaxBorderNeeded; }
+	
+	
+	
+	//=====================//
+	// generation pipeline //
+	//=====================//
+	
+	/**
+	 * Creates the stages each {@link GenerationEvent} passes through. <br>
+	 * Stages are run in array order, world generation steps after the event's target step are skipped
+	 * and the last stage (lighting) is always run.
+	 */
+	private GenerationStage[] createPipelineStages()
 	{
-		EVENT_LOGGER.debug("Lod Generate Event: " + genEvent.minPos);
-		
-		ArrayGridList<ChunkWrapper> chunkWrapperList;
-		DhLitWorldGenRegion region;
-		DummyLightEngine lightEngine;
-		LightGetterAdaptor adaptor;
-		
-		int borderSize = MaxBorderNeeded;
-		int refSize = genEvent.size + borderSize * 2;
-		int refPosX = genEvent.minPos.x - borderSize;
-		int refPosZ = genEvent.minPos.z - borderSize;
+		IntSupplier threadCount = DhWorldGenSettings::getWorldGenThreadCount;
+		LongSupplier priorityVersion = this.eventPrioritizer::getSnapshotVersion;
 		
-		try
+		return new GenerationStage[]
 		{
-			ArrayGridList<ChunkAccess> totalChunks;
-			
-			adaptor = new LightGetterAdaptor(this.params.level);
-			lightEngine = new DummyLightEngine(adaptor);
-			
-			EmptyChunkGenerator generator = (int x, int z) ->
+			new GenerationStage("setup", null, threadCount, priorityVersion, this::setupEvent),
+			// unknown generators place structures behind a global lock, there's no reason to tie up more than one thread waiting on it
+			new GenerationStage("structStart", EDhApiWorldGenerationStep.STRUCTURE_START, StepStructureStart.canPlaceConcurrently(this.params.generator) ? threadCount : () -> 1, priorityVersion,
+					(genEvent) -> this.stepStructureStart.generateGroup(genEvent.threadedParam, genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.STRUCTURE_START))),
+			new GenerationStage("structRef", EDhApiWorldGenerationStep.STRUCTURE_REFERENCE, threadCount, priorityVersion,
+					(genEvent) -> this.stepStructureReference.generateGroup(genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.STRUCTURE_REFERENCE))),
+			new GenerationStage("biome", EDhApiWorldGenerationStep.BIOMES, threadCount, priorityVersion,
+					(genEvent) -> this.stepBiomes.generateGroup(genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.BIOMES))),
+			new GenerationStage("noise", EDhApiWorldGenerationStep.NOISE, threadCount, priorityVersion,
+					(genEvent) -> this.stepNoise.generateGroup(genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.NOISE))),
+			new GenerationStage("surface", EDhApiWorldGenerationStep.SURFACE, threadCount, priorityVersion,
+					(genEvent) ->
+					{
+						this.stepSurface.generateGroup(genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.SURFACE));
+						if (DhWorldGenSettings.useSyntheticCanopy && genEvent.targetGenerationStep == EDhApiWorldGenerationStep.SURFACE)
+						{
+							// only the requested chunks, border chunks may be cached and decorated by a later event
+							this.stepSyntheticCanopy.generateGroup(GetCutoutFrom(genEvent.chunkWrapperList, getBorderWidth(genEvent)));
+						}
+					}),
+			// caves can generally be ignored since they aren't generally visible from far away
+			new GenerationStage("carver", EDhApiWorldGenerationStep.CARVERS, threadCount, priorityVersion, (genEvent) -> { }),
+			// features are the slowest step, leave a few threads free so other events can continue through the earlier steps
+			new GenerationStage("feature", EDhApiWorldGenerationStep.FEATURES, () -> threadCount.getAsInt() - (threadCount.getAsInt() / 4), priorityVersion,
+					(genEvent) -> this.stepFeatures.generateGroup(genEvent.structFeat, genEvent.region, GetCutoutFrom(genEvent.chunkWrapperList, EDhApiWorldGenerationStep.FEATURES),
+							DhWorldGenSettings.useParallelFeatures && !this.unsafeThreadingRecorded)),
+			new GenerationStage("light", null, threadCount, priorityVersion, this::lightAndEmitEvent),
+		};
+	}
+	
+	/** Called by {@link GenerationEvent#startEvent} */
+	public void queueEvent(GenerationEvent genEvent)
+	{
+		synchronized (this.eventsWaitingForPipeline)
+		{
+			this.eventsWaitingForPipeline.add(genEvent);
+		}
+		this.tryStartWaitingEvents();
+	}
+	
+	/** 
+	 * Each event holds its whole chunk grid in memory until it finishes,
+	 * so only {@link BatchGenerationEnvironment#getMaxEventsInPipeline()} events are allowed in the pipeline at once.
+	 */
+	private void tryStartWaitingEvents()
+	{
+		int maxEventsInPipeline = getMaxEventsInPipeline();
+		while (this.getWaitingEventCount() != 0)
+		{
+			int inPipelineCount = this.eventsInPipelineCount.get();
+			if (inPipelineCount >= maxEventsInPipeline)
 			{
-				ChunkPos chunkPos = new ChunkPos(x, z);
-				ChunkAccess target = null;
-				try
-				{
-					target = this.loadOrMakeChunk(chunkPos);
-				}
-				catch (RuntimeException e2)
-				{
-					// Continue...
-				}
-				
-				if (target == null)
-				{
-					target = new ProtoChunk(chunkPos, UpgradeData.EMPTY
-							#if MC_VER >= MC_1_17_1 , params.level #endif
-							#if MC_VER >= MC_1_18_2 , params.biomes, null #endif
-					);
-				}
-				return target;
-			};
-			
-			totalChunks = new ArrayGridList<>(refSize, (x, z) -> generator.generate(x + refPosX, z + refPosZ));
-			
-			genEvent.refreshTimeout();
-			region = new DhLitWorldGenRegion(params.level, lightEngine, totalChunks,
-					ChunkStatus.STRUCTURE_STARTS, refSize / 2, generator);
-			adaptor.setRegion(region);
-			genEvent.threadedParam.makeStructFeat(region, params);
-			
+				return;
+			}
+			if (!this.eventsInPipelineCount.compareAndSet(inPipelineCount, inPipelineCount + 1))
+			{
+				continue;
+			}
 			
-			chunkWrapperList = new ArrayGridList<>(totalChunks.gridSize);
-			totalChunks.forEachPos((x, z) ->
+			GenerationEvent genEvent = this.pollHighestPriorityWaitingEvent();
+			if (genEvent == null)
 			{
-				ChunkAccess chunk = totalChunks.get(x, z);
-				if (chunk != null)
-				{
-					chunkWrapperList.set(x, z, new ChunkWrapper(chunk, region, serverlevel.getLevelWrapper()));
-				}
-			});
+				this.eventsInPipelineCount.decrementAndGet();
+				continue;
+			}
 			
-			this.generateDirect(genEvent, chunkWrapperList, borderSize, genEvent.targetGenerationStep, region);
-			genEvent.timer.nextEvent("cleanup");
+			// the slot is released by leavePipeline() once the event is done and none of its stages are running,
+			// releasing it when the future completes would let a canceled event's stuck stage exceed the limit
+			this.queueStage(genEvent, 0);
 		}
-		catch (StepStructureStart.StructStartCorruptedException f)
+	}
+	
+	/** Releases the event's pipeline slot so the next waiting event can start. Only the first call for each event has any effect. */
+	private void leavePipeline(GenerationEvent genEvent)
+	{
+		if (genEvent.tryMarkLeftPipeline())
 		{
-			genEvent.threadedParam.markAsInvalid();
-			throw (RuntimeException) f.getCause();
+			this.eventsInPipelineCount.decrementAndGet();
+			this.tryStartWaitingEvents();
+		}
+	}
+	
+	private int getWaitingEventCount() { synchronized (this.eventsWaitingForPipeline) { return this.eventsWaitingForPipeline.size(); } }
+	
+	/** @return null if no events are waiting */
+	private GenerationEvent pollHighestPriorityWaitingEvent() { synchronized (this.eventsWaitingForPipeline) { return this.eventsWaitingForPipeline.poll(); } }
+	
+	/**
+	 * Used by {@link BatchGenerationEnvironment#eventsWaitingForPipeline} to drop events that no longer need to be started.
+	 * Also cancels any waiting events that are too far away from the players.
+	 * 
+	 * @return true if the event should be removed from the queue
+	 */
+	private boolean tryDropWaitingEvent(GenerationEvent genEvent)
+	{
+		if (genEvent.future.isDone())
+		{
+			return true;
 		}
 		
-		ArrayGridList<ChunkWrapper> finalGenChunks = GetCutoutFrom(chunkWrapperList, borderSize);
-		for (int offsetY = 0; offsetY < finalGenChunks.gridSize; offsetY++)
+		if (this.eventPrioritizer.isOutOfRange(genEvent))
 		{
-			for (int offsetX = 0; offsetX < finalGenChunks.gridSize; offsetX++)
-			{
-				ChunkWrapper wrappedChunk = finalGenChunks.get(offsetX, offsetY);
-				ChunkAccess target = wrappedChunk.getChunk();
-				if (target instanceof LevelChunk)
-				{
-					#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
-					((LevelChunk) target).setLoaded(true);
-					#else
-					((LevelChunk) target).loaded = true;
-					#endif
-				}
-				
-				if (!wrappedChunk.isLightCorrect())
-				{
-					throw new RuntimeException("The generated chunk somehow has isLightCorrect() returning false");
-				}
-				
-				boolean isFull = target.getStatus() == ChunkStatus.FULL || target instanceof LevelChunk;
-				#if MC_VER >= MC_1_18_2
-				boolean isPartial = target.isOldNoiseGeneration();
-				#endif
-				if (isFull)
-				{
-					LOAD_LOGGER.info("Detected full existing chunk at {}", target.getPos());
-					genEvent.resultConsumer.accept(wrappedChunk);
-				}
-				#if MC_VER >= MC_1_18_2
-				else if (isPartial)
-				{
-					LOAD_LOGGER.info("Detected old existing chunk at {}", target.getPos());
-					genEvent.resultConsumer.accept(wrappedChunk);
-				}
-				#endif
-				else if (target.getStatus() == ChunkStatus.EMPTY)
-				{
-					genEvent.resultConsumer.accept(wrappedChunk);
-				}
-				else
-				{
-					genEvent.resultConsumer.accept(wrappedChunk);
-				}
-			}
+			EVENT_LOGGER.debug("Canceling generation event [" + genEvent + "] since it is too far from every player.");
+			genEvent.future.cancel(false);
+			return true;
 		}
 		
-		genEvent.timer.complete();
-		genEvent.refreshTimeout();
-		if (PREF_LOGGER.canMaybeLog())
+		return false;
+	}
+	
+	private void queueStage(GenerationEvent genEvent, int stageIndex)
+	{
+		if (genEvent.future.isDone())
 		{
-			genEvent.threadedParam.perf.recordEvent(genEvent.timer);
-			PREF_LOGGER.infoInc("{}", genEvent.timer);
+			// the event was canceled or timed out
+			this.onEventStopped(genEvent);
+			return;
+		}
+		
+		if (this.eventPrioritizer.isOutOfRange(genEvent))
+		{
+			EVENT_LOGGER.debug("Canceling generation event [" + genEvent + "] since it is too far from every player.");
+			genEvent.future.cancel(false);
+			this.onEventStopped(genEvent);
+			return;
+		}
+		
+		// time spent waiting on another stage shouldn't count towards either the timeout or the stage's timing
+		genEvent.timeoutTime = -1;
+		if (genEvent.timer != null)
+		{
+			genEvent.timer.nextEvent("queued");
 		}
+		
+		this.pipelineStages[stageIndex].submit(
+				() -> this.runStage(genEvent, stageIndex), 
+				() -> this.eventPrioritizer.getPriority(genEvent), 
+				genEvent.executor,
+				(rejectedException) ->
+				{
+					genEvent.future.completeExceptionally(rejectedException);
+					this.onEventStopped(genEvent);
+				});
 	}
 	
-	public void generateDirect(
-			GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunksToGenerate, int border,
-			EDhApiWorldGenerationStep step, DhLitWorldGenRegion region) throws InterruptedException
+	private void runStage(GenerationEvent genEvent, int stageIndex)
 	{
-		if (Thread.interrupted())
+		if (genEvent.future.isDone())
 		{
+			this.onEventStopped(genEvent);
 			return;
 		}
 		
+		GenerationStage stage = this.pipelineStages[stageIndex];
+		isDistantGeneratorThread.set(true);
+		genEvent.setRunningThread(Thread.currentThread());
 		try
 		{
-			chunksToGenerate.forEach((chunkWrapper) ->
-			{
-				ChunkAccess chunk = chunkWrapper.getChunk();
-				if (chunk instanceof ProtoChunk)
-				{
-					ProtoChunk protoChunk = ((ProtoChunk) chunk);
-					
-					protoChunk.setLightEngine(region.getLightEngine());
-				}
-			});
-			
-			if (step == EDhApiWorldGenerationStep.EMPTY)
+			genEvent.timeoutTime = System.nanoTime();
+			if (genEvent.timer != null)
 			{
-				return;
+				genEvent.timer.nextEvent(stage.name);
 			}
 			
-			genEvent.timer.nextEvent("structStart");
 			throwIfThreadInterrupted();
-			this.stepStructureStart.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_START));
+			stage.runner.run(genEvent);
+			genEvent.recordCompletedStatuses();
 			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.STRUCTURE_START)
+		}
+		catch (InterruptedException e)
+		{
+			// the event was canceled, keep whatever was already generated
+			ArrayGridList<ChunkWrapper> chunkWrappers = genEvent.chunkWrapperList;
+			ChunkStatus[] completedStatuses = genEvent.completedStatuses;
+			if (chunkWrappers != null && completedStatuses != null && !genEvent.future.isDone())
 			{
-				return;
+				this.salvageEvent(genEvent, chunkWrappers, completedStatuses, false);
 			}
 			
-			genEvent.timer.nextEvent("structRef");
-			throwIfThreadInterrupted();
-			this.stepStructureReference.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.STRUCTURE_REFERENCE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.STRUCTURE_REFERENCE)
+			genEvent.future.complete(null);
+			return;
+		}
+		catch (StepStructureStart.StructStartCorruptedException e)
+		{
+			genEvent.threadedParam.markAsInvalid();
+			genEvent.future.completeExceptionally(e.getCause());
+			return;
+		}
+		catch (Throwable e)
+		{
+			genEvent.future.completeExceptionally(e);
+			return;
+		}
+		finally
+		{
+			genEvent.setRunningThread(null);
+			if (genEvent.future.isCancelled())
 			{
-				return;
+				// terminate() may have interrupted this thread, 
+				// that interrupt shouldn't carry over to the salvage or the next task run on this thread
+				Thread.interrupted();
 			}
 			
-			genEvent.timer.nextEvent("biome");
-			throwIfThreadInterrupted();
-			this.stepBiomes.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.BIOMES));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.BIOMES)
+			if (genEvent.future.isDone())
 			{
-				return;
+				// the event failed or was canceled while this stage was running
+				this.onEventStopped(genEvent);
 			}
 			
-			genEvent.timer.nextEvent("noise");
-			throwIfThreadInterrupted();
-			this.stepNoise.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.NOISE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.NOISE)
-			{
-				return;
-			}
+			isDistantGeneratorThread.remove();
+		}
+		
+		if (genEvent.future.isDone())
+		{
+			// already handled by onEventStopped() above
+			return;
+		}
+		
+		
+		int nextStageIndex = this.getNextStageIndex(genEvent, stageIndex);
+		if (nextStageIndex == -1)
+		{
+			genEvent.releaseGenerationData();
+			genEvent.future.complete(null);
+			this.leavePipeline(genEvent);
+		}
+		else
+		{
+			this.queueStage(genEvent, nextStageIndex);
+		}
+	}
+	
+	/** 
+	 * Called once an event's future is done and none of its stages are running. <br>
+	 * Salvages the event's chunks if it timed out, then releases them and the event's pipeline slot.
+	 */
+	private void onEventStopped(GenerationEvent genEvent)
+	{
+		ArrayGridList<ChunkWrapper> chunkWrappers = genEvent.chunkWrapperList;
+		ChunkStatus[] completedStatuses = genEvent.completedStatuses;
+		if (genEvent.salvageRequested
+			&& genEvent.future.isCancelled()
+			&& chunkWrappers != null && completedStatuses != null)
+		{
+			genEvent.salvageRequested = false;
+			this.salvageEvent(genEvent, chunkWrappers, completedStatuses, true);
+		}
+		
+		genEvent.releaseGenerationData();
+		this.leavePipeline(genEvent);
+	}
+	
+	/** @return -1 if the event is finished */
+	private int getNextStageIndex(GenerationEvent genEvent, int stageIndex)
+	{
+		int lightStageIndex = this.pipelineStages.length - 1;
+		if (stageIndex == lightStageIndex)
+		{
+			return -1;
+		}
+		
+		EDhApiWorldGenerationStep completedStep = this.pipelineStages[stageIndex].step;
+		if (completedStep == null)
+		{
+			// setup just finished
+			boolean skipGeneration = genEvent.isImportOnly || genEvent.targetGenerationStep == EDhApiWorldGenerationStep.EMPTY;
+			return skipGeneration ? lightStageIndex : stageIndex + 1;
+		}
+		
+		return (completedStep == genEvent.targetGenerationStep) ? lightStageIndex : stageIndex + 1;
+	}
+	
+	
+	
+	//=================//
+	// pipeline stages //
+	//=================//
+	
+	private void setupEvent(GenerationEvent genEvent)
+	{
+		long runStartTime = System.nanoTime();
+		genEvent.inQueueTime = runStartTime - genEvent.inQueueTime;
+		genEvent.timer = new EventTimer("setup");
+		
+		EVENT_LOGGER.debug("Lod Generate Event: " + genEvent.minPos);
+		
+		LightGetterAdaptor adaptor = new LightGetterAdaptor(this.params.level);
+		DummyLightEngine lightEngine = new DummyLightEngine(adaptor);
+		
+		// if everything has already been generated, 
+		// the chunks only need to be loaded and lit, so no border or generator is needed
+		RegionFileBatchReader.BatchReadResult fullChunkData = DhWorldGenSettings.useExistingChunkImport ? this.tryReadFullChunks(genEvent) : null;
+		if (fullChunkData != null)
+		{
+			ArrayGridList<ChunkAccess> fullChunks = new ArrayGridList<>(genEvent.size, (x, z) ->
+			{
+				ChunkPos chunkPos = new ChunkPos(genEvent.minPos.x + x, genEvent.minPos.z + z);
+				return this.makeChunk(chunkPos, fullChunkData.chunkDataByPos.get(chunkPos.toLong()));
+			});
 			
-			genEvent.timer.nextEvent("surface");
-			throwIfThreadInterrupted();
-			this.stepSurface.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.SURFACE));
-			genEvent.refreshTimeout();
-			if (step == EDhApiWorldGenerationStep.SURFACE)
+			// makeChunk returns an empty chunk if the data couldn't be parsed
+			boolean allChunksLoaded = true;
+			for (int i = 0; i < fullChunks.size(); i++)
 			{
-				return;
+				allChunksLoaded &= (fullChunks.get(i) instanceof LevelChunk);
 			}
 			
-			genEvent.timer.nextEvent("carver");
-			throwIfThreadInterrupted();
-			// caves can generally be ignored since they aren't generally visible from far away
-			if (step == EDhApiWorldGenerationStep.CARVERS)
+			if (allChunksLoaded)
 			{
+				EmptyChunkGenerator importGenerator = (int x, int z) -> this.loadOrMakeChunk(new ChunkPos(x, z));
+				genEvent.isImportOnly = true;
+				this.setupRegion(genEvent, fullChunks, fullChunkData, lightEngine, adaptor, importGenerator);
 				return;
 			}
-			
-			genEvent.timer.nextEvent("feature");
-			throwIfThreadInterrupted();
-			this.stepFeatures.generateGroup(genEvent.threadedParam, region, GetCutoutFrom(chunksToGenerate, EDhApiWorldGenerationStep.FEATURES));
-			genEvent.refreshTimeout();
 		}
-		finally
+		
+		int borderSize = MaxBorderNeeded;
+		int refSize = genEvent.size + borderSize * 2;
+		int refPosX = genEvent.minPos.x - borderSize;
+		int refPosZ = genEvent.minPos.z - borderSize;
+		
+		EmptyChunkGenerator generator = (int x, int z) ->
 		{
-			genEvent.timer.nextEvent("light");
+			ChunkPos chunkPos = new ChunkPos(x, z);
+			ChunkAccess target = null;
+			try
+			{
+				target = this.loadOrMakeChunk(chunkPos);
+			}
+			catch (RuntimeException e2)
+			{
+				// Continue...
+			}
 			
-			// generate lighting using DH's lighting engine
-				
-			int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
+			if (target == null)
+			{
+				target = this.EmptyChunk(chunkPos);
+			}
+			return target;
+		};
+		
+		// read all the pre-existing chunks at once,
+		// any chunks the batch couldn't read will be read individually by the generator
+		RegionFileBatchReader.BatchReadResult preloadedChunks = this.preloadChunkData(refPosX, refPosZ, refSize);
+		ArrayGridList<ChunkAccess> totalChunks = new ArrayGridList<>(refSize, (x, z) ->
+		{
+			long chunkPosLong = ChunkPos.asLong(x + refPosX, z + refPosZ);
+			if (!preloadedChunks.isKnown(chunkPosLong))
+			{
+				return generator.generate(x + refPosX, z + refPosZ);
+			}
 			
-			// only light generated chunks,
-			// attempting to light un-generated chunks will cause lighting issues on bordering generated chunks
-			ArrayList<IChunkWrapper> iChunkWrapperList = new ArrayList<>();
-			for (int i = 0; i < chunksToGenerate.size(); i++) // regular for loop since enhanced for loops increase GC pressure slightly
+			ChunkPos chunkPos = new ChunkPos(x + refPosX, z + refPosZ);
+			ChunkAccess chunk = this.makeChunk(chunkPos, preloadedChunks.chunkDataByPos.get(chunkPosLong));
+			return (chunk != null) ? chunk : this.EmptyChunk(chunkPos);
+		});
+		
+		genEvent.refreshTimeout();
+		this.setupRegion(genEvent, totalChunks, preloadedChunks, lightEngine, adaptor, generator);
+	}
+	
+	/** @param savedChunkData used to read the light levels Minecraft saved with any fully generated chunks */
+	private void setupRegion(
+			GenerationEvent genEvent, ArrayGridList<ChunkAccess> totalChunks, RegionFileBatchReader.BatchReadResult savedChunkData,
+			DummyLightEngine lightEngine, LightGetterAdaptor adaptor, EmptyChunkGenerator generator)
+	{
+		DhLitWorldGenRegion region = new DhLitWorldGenRegion(this.params.level, lightEngine, totalChunks,
+				ChunkStatus.STRUCTURE_STARTS, totalChunks.gridSize / 2, generator);
+		adaptor.setRegion(region);
+		#if MC_VER < MC_1_19_4
+		genEvent.structFeat = new WorldGenStructFeatManager(this.params.worldGenSettings, region #if MC_VER >= MC_1_18_2 , this.params.structCheck #endif );
+		#else
+		genEvent.structFeat = new WorldGenStructFeatManager(this.params.worldOptions, region, this.params.structCheck);
+		#endif
+		
+		
+		boolean hasSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight();
+		ArrayGridList<ChunkWrapper> chunkWrapperList = new ArrayGridList<>(totalChunks.gridSize);
+		totalChunks.forEachPos((x, z) ->
+		{
+			ChunkAccess chunk = totalChunks.get(x, z);
+			if (chunk != null)
 			{
-				ChunkWrapper chunkWrapper = chunksToGenerate.get(i);
-				if (chunkWrapper.getChunk().getStatus() != ChunkStatus.EMPTY)
+				ChunkWrapper chunkWrapper = new ChunkWrapper(chunk, region, this.serverlevel.getLevelWrapper());
+				chunkWrapperList.set(x, z, chunkWrapper);
+				
+				// chunks that were lit before they were saved don't need to be re-lit by DH
+				CompoundTag chunkData = (chunk instanceof LevelChunk) ? savedChunkData.chunkDataByPos.get(chunk.getPos().toLong()) : null;
+				if (DhWorldGenSettings.useSavedLighting && chunkData != null)
 				{
-					iChunkWrapperList.add(chunkWrapper);
+					ChunkLoader.readSavedLight(chunkData, chunkWrapper, hasSkyLight);
 				}
 			}
-			
-			// light each chunk in the list
+		});
+		
+		chunkWrapperList.forEach((chunkWrapper) ->
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			if (chunk instanceof ProtoChunk)
+			{
+				ProtoChunk protoChunk = ((ProtoChunk) chunk);
+				
+				protoChunk.setLightEngine(region.getLightEngine());
+			}
+		});
+		
+		genEvent.region = region;
+		genEvent.chunkWrapperList = chunkWrapperList;
+	}
+	
+	private void lightAndEmitEvent(GenerationEvent genEvent) throws InterruptedException
+	{
+		ArrayGridList<ChunkWrapper> chunksToGenerate = genEvent.chunkWrapperList;
+		
+		
+		// generate lighting using DH's lighting engine
+		
+		int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
+		
+		// only light generated chunks,
+		// attempting to light un-generated chunks will cause lighting issues on bordering generated chunks
+		ArrayList<IChunkWrapper> iChunkWrapperList = new ArrayList<>();
+		for (int i = 0; i < chunksToGenerate.size(); i++) // regular for loop since enhanced for loops increase GC pressure slightly
+		{
+			ChunkWrapper chunkWrapper = chunksToGenerate.get(i);
+			if (chunkWrapper.getChunk().getStatus() != ChunkStatus.EMPTY)
+			{
+				iChunkWrapperList.add(chunkWrapper);
+			}
+		}
+		
+		// light each chunk in the list
+		if (DhWorldGenSettings.useParallelLighting && iChunkWrapperList.size() > 1)
+		{
+			this.lightChunksInParallel(iChunkWrapperList, maxSkyLight);
+		}
+		else
+		{
 			for (int i = 0; i < iChunkWrapperList.size(); i++)
 			{
-				IChunkWrapper centerChunk = iChunkWrapperList.get(i);
-				if (centerChunk == null)
+				throwIfThreadInterrupted();
+				lightChunk(iChunkWrapperList, i, maxSkyLight);
+			}
+		}
+		
+		genEvent.refreshTimeout();
+		genEvent.timer.nextEvent("cleanup");
+		
+		
+		int borderWidth = getBorderWidth(genEvent);
+		ArrayGridList<ChunkWrapper> finalGenChunks = GetCutoutFrom(chunksToGenerate, borderWidth);
+		for (int offsetY = 0; offsetY < finalGenChunks.gridSize; offsetY++)
+		{
+			for (int offsetX = 0; offsetX < finalGenChunks.gridSize; offsetX++)
+			{
+				ChunkWrapper wrappedChunk = finalGenChunks.get(offsetX, offsetY);
+				ChunkAccess target = wrappedChunk.getChunk();
+				if (target instanceof LevelChunk)
 				{
-					continue;
+					#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
+					((LevelChunk) target).setLoaded(true);
+					#else
+					((LevelChunk) target).loaded = true;
+					#endif
 				}
 				
-				throwIfThreadInterrupted();
+				if (!wrappedChunk.isLightCorrect())
+				{
+					throw new RuntimeException("The generated chunk somehow has isLightCorrect() returning false");
+				}
+				
+				boolean isFull = target.getStatus() == ChunkStatus.FULL || target instanceof LevelChunk;
+				#if MC_VER >= MC_1_18_2
+				boolean isPartial = target.isOldNoiseGeneration();
+				#endif
+				if (isFull)
+				{
+					LOAD_LOGGER.info("Detected full existing chunk at {}", target.getPos());
+					genEvent.resultConsumer.accept(wrappedChunk);
+				}
+				#if MC_VER >= MC_1_18_2
+				else if (isPartial)
+				{
+					LOAD_LOGGER.info("Detected old existing chunk at {}", target.getPos());
+					genEvent.resultConsumer.accept(wrappedChunk);
+				}
+				#endif
+				else if (target.getStatus() == ChunkStatus.EMPTY)
+				{
+					genEvent.resultConsumer.accept(wrappedChunk);
+				}
+				else
+				{
+					genEvent.resultConsumer.accept(wrappedChunk);
+				}
+			}
+		}
+		
+		// border chunks are only used as lighting neighbors and aren't passed to the result consumer,
+		// so their light storage can be returned to the shared pool.
+		// The emitted chunks' storage isn't released since the consumer may still be using it (IE if it queues the chunk)
+		int gridSize = chunksToGenerate.gridSize;
+		for (int offsetY = 0; offsetY < gridSize; offsetY++)
+		{
+			for (int offsetX = 0; offsetX < gridSize; offsetX++)
+			{
+				boolean isBorderChunk = offsetX < borderWidth || offsetX >= gridSize - borderWidth
+						|| offsetY < borderWidth || offsetY >= gridSize - borderWidth;
+				if (isBorderChunk)
+				{
+					ChunkWrapper borderChunk = chunksToGenerate.get(offsetX, offsetY);
+					borderChunk.releaseDhLightStorage();
+					if (borderChunk.getChunk() instanceof ProtoChunk)
+					{
+						// the sections of chunks that were never generated can be re-used
+						this.emptyChunkPool.recycle((ProtoChunk) borderChunk.getChunk());
+					}
+				}
+			}
+		}
+		
+		genEvent.timer.complete();
+		genEvent.refreshTimeout();
+		if (!genEvent.isImportOnly)
+		{
+			// imports are much faster than generating and would throw off the batch sizing
+			this.batchSizeController.recordEvent(genEvent.timer, gridSize * gridSize, genEvent.size);
+		}
+		if (PREF_LOGGER.canMaybeLog())
+		{
+			genEvent.threadedParam.perf.recordEvent(genEvent.timer);
+			PREF_LOGGER.infoInc("{}", genEvent.timer);
+			PREF_LOGGER.infoInc("Batch sizing: {}", this.batchSizeController);
+			PREF_LOGGER.infoInc("Empty chunk pool: {}", this.emptyChunkPool);
+		}
+	}
+	
+	/**
+	 * Lights and emits the chunks of an event that was stopped early at the step each of them reached,
+	 * so a single slow structure doesn't throw away the rest of the batch. <br>
+	 * Must only be called once the event's stage has exited, so nothing else is modifying the chunks.
+	 * If a stuck stage never responds to being interrupted its chunks are never salvaged. <br>
+	 * This is best effort, any chunk that fails to light or emit is treated as missing.
+	 *
+	 * @param completedStatuses see {@link GenerationEvent#completedStatuses}
+	 * @param requeueMissingChunks if true requested chunks that couldn't be salvaged are re-generated in their own events
+	 */
+	private void salvageEvent(GenerationEvent genEvent, ArrayGridList<ChunkWrapper> chunkWrappers, ChunkStatus[] completedStatuses, boolean requeueMissingChunks)
+	{
+		int maxSkyLight = this.serverlevel.getServerLevelWrapper().hasSkyLight() ? 15 : 0;
+		
+		// light every chunk that was generated, lighting needs each chunk's neighbors
+		ArrayList<IChunkWrapper> iChunkWrapperList = new ArrayList<>();
+		for (int i = 0; i < chunkWrappers.size(); i++)
+		{
+			if (completedStatuses[i] != ChunkStatus.EMPTY)
+			{
+				iChunkWrapperList.add(chunkWrappers.get(i));
+			}
+		}
+		
+		HashSet<IChunkWrapper> failedChunks = new HashSet<>();
+		for (int i = 0; i < iChunkWrapperList.size(); i++)
+		{
+			try
+			{
+				lightChunk(iChunkWrapperList, i, maxSkyLight);
+			}
+			catch (Exception e)
+			{
+				failedChunks.add(iChunkWrapperList.get(i));
+			}
+		}
+		
+		
+		// emit the requested chunks that got far enough
+		int salvagedCount = 0;
+		ArrayList<ChunkPos> missingChunkPosList = new ArrayList<>();
+		int gridSize = chunkWrappers.gridSize;
+		int borderWidth = getBorderWidth(genEvent);
+		for (int offsetY = borderWidth; offsetY < gridSize - borderWidth; offsetY++)
+		{
+			for (int offsetX = borderWidth; offsetX < gridSize - borderWidth; offsetX++)
+			{
+				int index = offsetX + (offsetY * gridSize);
+				ChunkWrapper chunkWrapper = chunkWrappers.get(index);
+				ChunkAccess chunk = chunkWrapper.getChunk();
+				ChunkStatus completedStatus = completedStatuses[index];
 				
-				// make sure the height maps are all properly generated
-				// if this isn't done everything else afterward may fail
-				Heightmap.primeHeightmaps(((ChunkWrapper)centerChunk).getChunk(), ChunkStatus.FEATURES.heightmapsAfter());
+				boolean emitted = false;
+				if (completedStatus.isOrAfter(MIN_SALVAGE_STATUS) && !failedChunks.contains(chunkWrapper))
+				{
+					try
+					{
+						// the chunk's status was set by the step that didn't finish
+						if (chunk instanceof ProtoChunk && !(chunk instanceof ImposterProtoChunk))
+						{
+							((ProtoChunk) chunk).setStatus(completedStatus);
+						}
+						
+						genEvent.resultConsumer.accept(chunkWrapper);
+						emitted = true;
+						salvagedCount++;
+					}
+					catch (Exception e)
+					{
+						EVENT_LOGGER.warn("Unable to salvage chunk at [" + chunk.getPos() + "] from generation event [" + genEvent + "], error: " + e.getMessage());
+					}
+				}
 				
-				// populate the lighting
-				DhLightingEngine.INSTANCE.lightChunk(centerChunk, iChunkWrapperList, maxSkyLight);
+				if (!emitted)
+				{
+					missingChunkPosList.add(chunk.getPos());
+				}
+			}
+		}
+		
+		
+		// re-generate the missing chunks,
+		// if nothing could be salvaged re-generating the chunks would probably get stuck the same way
+		int requeuedCount = 0;
+		if (requeueMissingChunks
+			&& !genEvent.isSalvageRetry
+			&& salvagedCount != 0)
+		{
+			for (ChunkPos chunkPos : missingChunkPosList)
+			{
+				GenerationEvent retryEvent = GenerationEvent.startEvent(new DhChunkPos(chunkPos.x, chunkPos.z), 1, this, genEvent.targetGenerationStep, genEvent.resultConsumer, genEvent.executor, true);
+				this.trackEvent(retryEvent);
+				requeuedCount++;
 			}
+		}
+		
+		EVENT_LOGGER.info("Salvaged [" + salvagedCount + "] chunks from generation event [" + genEvent + "], [" + missingChunkPosList.size() + "] missing, [" + requeuedCount + "] re-queued.");
+	}
+	
+	private static void lightChunk(ArrayList<IChunkWrapper> chunkList, int index, int maxSkyLight)
+	{
+		IChunkWrapper centerChunk = chunkList.get(index);
+		if (centerChunk.isLightCorrect())
+		{
+			// the chunk's light was loaded from disk,
+			// it is still included in the list so its neighbors can be lit
+			return;
+		}
+		
+		// make sure the height maps are all properly generated
+		// if this isn't done everything else afterward may fail
+		Heightmap.primeHeightmaps(((ChunkWrapper)centerChunk).getChunk(), ChunkStatus.FEATURES.heightmapsAfter());
+		
+		// populate the lighting
+		DhLightingEngine.INSTANCE.lightChunk(centerChunk, chunkList, maxSkyLight);
+	}
+	
+	/**
+	 * Lights the given chunks using {@link BatchGenerationEnvironment#parallelStepPool}. <br><br>
+	 * 
+	 * Lighting a chunk reads and writes to the chunks directly around it,
+	 * so each chunk waits until every chunk before it in the list whose neighbors overlap its neighbors
+	 * (IE any chunk within 2 chunks of it) has been lit.
+	 * This means any two chunks that could affect each other are always lit in the same order
+	 * as the serial path (so the result is identical) while chunks that are far enough apart are lit at the same time. <br>
+	 * Since the list is in row order the chunks end up being lit in diagonal waves across the grid.
+	 */
+	private void lightChunksInParallel(ArrayList<IChunkWrapper> chunkList, int maxSkyLight) throws InterruptedException
+	{
+		int chunkCount = chunkList.size();
+		int[] chunkXs = new int[chunkCount];
+		int[] chunkZs = new int[chunkCount];
+		for (int i = 0; i < chunkCount; i++)
+		{
+			ChunkPos chunkPos = ((ChunkWrapper) chunkList.get(i)).getChunk().getPos();
+			chunkXs[i] = chunkPos.x;
+			chunkZs[i] = chunkPos.z;
+		}
+		
+		
+		// determine which chunks each chunk has to wait for
+		AtomicInteger[] remainingDependencyCounts = new AtomicInteger[chunkCount];
+		ArrayList<ArrayList<Integer>> dependentIndexLists = new ArrayList<>(chunkCount);
+		for (int i = 0; i < chunkCount; i++)
+		{
+			dependentIndexLists.add(new ArrayList<>());
 			
-			genEvent.refreshTimeout();
+			int dependencyCount = 0;
+			for (int j = 0; j < i; j++)
+			{
+				if (Math.abs(chunkXs[i] - chunkXs[j]) <= 2 && Math.abs(chunkZs[i] - chunkZs[j]) <= 2)
+				{
+					dependencyCount++;
+					dependentIndexLists.get(j).add(i);
+				}
+			}
+			remainingDependencyCounts[i] = new AtomicInteger(dependencyCount);
 		}
+		
+		
+		CompletableFuture<Void> allChunksLitFuture = new CompletableFuture<>();
+		ParallelLightingTask lightingTask = new ParallelLightingTask(chunkList, maxSkyLight, remainingDependencyCounts, dependentIndexLists, allChunksLitFuture);
+		for (int i = 0; i < chunkCount; i++)
+		{
+			if (remainingDependencyCounts[i].get() == 0)
+			{
+				lightingTask.submit(i);
+			}
+		}
+		
+		try
+		{
+			allChunksLitFuture.get();
+		}
+		catch (InterruptedException e)
+		{
+			// stop any chunks that haven't started yet
+			allChunksLitFuture.cancel(false);
+			throw e;
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException) cause;
+			}
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	/** @return the number of threads the world generator is configured to use, never less than 1 */
+	/** each partially generated event holds its full chunk grid in memory, so this is bounded separately from the stage budgets */
+	public static int getMaxEventsInPipeline() { return DhWorldGenSettings.getWorldGenThreadCount() * 2; }
+	
+	public static ForkJoinPool getParallelStepPool()
+	{
+		int threadCount = DhWorldGenSettings.getWorldGenThreadCount();
+		ForkJoinPool pool = parallelStepPool;
+		if (pool == null || pool.getParallelism() != threadCount)
+		{
+			synchronized (BatchGenerationEnvironment.class)
+			{
+				pool = parallelStepPool;
+				if (pool == null || pool.getParallelism() != threadCount)
+				{
+					if (pool != null)
+					{
+						// tasks that were already submitted will still finish
+						pool.shutdown();
+					}
+					
+					pool = new ForkJoinPool(threadCount);
+					parallelStepPool = pool;
+				}
+			}
+		}
+		return pool;
 	}
 	
 	public interface EmptyChunkGenerator
@@ -695,8 +1393,39 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		
 	}
 	
+	/** Tracks the event until it completes and schedules its timeout check. */
+	void trackEvent(GenerationEvent genEvent)
+	{
+		this.generationEventSet.add(genEvent);
+		if (genEvent.isBulkImport)
+		{
+			this.bulkImportEventCount.incrementAndGet();
+		}
+		
+		long timeoutNs = TimeUnit.NANOSECONDS.convert(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS);
+		this.timeoutWheel.schedule(genEvent, System.nanoTime() + timeoutNs);
+		
+		// will run immediately if the event has already completed
+		genEvent.future.whenComplete((result, throwable) ->
+		{
+			this.generationEventSet.remove(genEvent);
+			if (genEvent.isBulkImport)
+			{
+				this.bulkImportEventCount.decrementAndGet();
+			}
+			if (throwable != null && !genEvent.future.isCancelled())
+			{
+				this.failedEvents.add(genEvent);
+			}
+		});
+	}
+	
+	/** 
+	 * Bulk import events aren't included since core uses this to throttle new requests
+	 * and imports shouldn't hold back the players' requests.
+	 */
 	@Override
-	public int getEventCount() { return this.generationEventList.size(); }
+	public int getEventCount() { return Math.max(0, this.generationEventSet.size() - this.bulkImportEventCount.get()); }
 	
 	@Override
 	public void stop()
@@ -704,13 +1433,32 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		EVENT_LOGGER.info(BatchGenerationEnvironment.class.getSimpleName() + " shutting down...");
 		
 		EVENT_LOGGER.info("Canceling in progress generation event futures...");
-		Iterator<GenerationEvent> iter = this.generationEventList.iterator();
+		Iterator<GenerationEvent> iter = this.generationEventSet.iterator();
 		while (iter.hasNext())
 		{
 			GenerationEvent event = iter.next();
 			event.future.cancel(true);
 			iter.remove();
 		}
+		this.timeoutWheel.clear();
+		
+		this.depthTiers.save();
+		
+		synchronized (this)
+		{
+			BulkChunkImporter importer = this.bulkChunkImporter;
+			if (importer != null)
+			{
+				importer.cancel();
+			}
+			if (this.bulkImportExecutor != null)
+			{
+				this.bulkImportExecutor.shutdownNow();
+			}
+		}
+		
+		this.emptyChunkPool.clear();
+		this.structureStartCache.flush();
 		
 		// clear the chunk cache
 		RegionFileStorageExternalCache regionStorage = this.regionFileStorageCacheRef.get();
@@ -735,13 +1483,102 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 			ExecutorService worldGeneratorThreadPool, Consumer<IChunkWrapper> resultConsumer)
 	{
 		//System.out.println("GenerationEvent: "+genSize+"@"+minX+","+minZ+" "+targetStep);
+		this.lastWorldGeneratorThreadPool = worldGeneratorThreadPool;
+		DhWorldGenSettings.updateWorldGenThreadCount(worldGeneratorThreadPool);
+		return this.queueRequest(minX, minZ, genSize, targetStep, worldGeneratorThreadPool, resultConsumer);
+	}
+	
+	/** Splits the request into events if necessary and queues them. */
+	private CompletableFuture<Void> queueRequest(
+			int minX, int minZ, int genSize, EDhApiWorldGenerationStep requestedStep,
+			ExecutorService worldGeneratorThreadPool, Consumer<IChunkWrapper> resultConsumer)
+	{
+		// distant requests don't need as much detail
+		double distanceInChunks = this.eventPrioritizer.getDistanceToNearestPlayer(minX + (genSize / 2.0), minZ + (genSize / 2.0));
+		EDhApiWorldGenerationStep targetStep = GenerationDepthTiers.getTargetStep(requestedStep, distanceInChunks);
+		if (targetStep != requestedStep)
+		{
+			// the request's future will complete once the earlier step is done,
+			// so the request is remembered (and saved with the level) until it can be upgraded
+			EVENT_LOGGER.debug("Generating request [" + genSize + "@" + minX + "," + minZ + "] to [" + targetStep + "] instead of [" + requestedStep + "], it is [" + (int) distanceInChunks + "] chunks from the nearest player.");
+			this.depthTiers.addPendingUpgrade(minX, minZ, genSize, requestedStep, targetStep);
+		}
 		
 		// TODO: Check event overlap via e.tooClose()
-		GenerationEvent genEvent = GenerationEvent.startEvent(new DhChunkPos(minX, minZ), genSize, this, targetStep, resultConsumer, worldGeneratorThreadPool);
-		this.generationEventList.add(genEvent);
-		return genEvent.future;
+		int maxEventWidth = this.batchSizeController.getMaxBatchWidth(MaxBorderNeeded);
+		if (genSize <= maxEventWidth)
+		{
+			GenerationEvent genEvent = GenerationEvent.startEvent(new DhChunkPos(minX, minZ), genSize, this, targetStep, resultConsumer, worldGeneratorThreadPool);
+			this.trackEvent(genEvent);
+			return genEvent.future;
+		}
+		
+		
+		// the request is too large to generate at once, split it into multiple events.
+		// Events are always square and odd width, so instead of shrinking the last column/row
+		// (which would only shrink one axis) they are shifted inward to end on the request's edge,
+		// overlapping the previous column/row instead of generating chunks outside the request.
+		ArrayList<CompletableFuture<Void>> eventFutures = new ArrayList<>();
+		for (int offsetZ = 0; offsetZ < genSize; offsetZ += maxEventWidth)
+		{
+			int eventOffsetZ = Math.min(offsetZ, genSize - maxEventWidth);
+			for (int offsetX = 0; offsetX < genSize; offsetX += maxEventWidth)
+			{
+				int eventOffsetX = Math.min(offsetX, genSize - maxEventWidth);
+				GenerationEvent genEvent = GenerationEvent.startEvent(new DhChunkPos(minX + eventOffsetX, minZ + eventOffsetZ), maxEventWidth, this, targetStep, resultConsumer, worldGeneratorThreadPool);
+				this.trackEvent(genEvent);
+				eventFutures.add(genEvent.future);
+			}
+		}
+		
+		CompletableFuture<Void> combinedFuture = CompletableFuture.allOf(eventFutures.toArray(new CompletableFuture[0]));
+		combinedFuture.whenComplete((result, exception) ->
+		{
+			// canceling the request should cancel each of its events
+			if (combinedFuture.isCancelled())
+			{
+				for (CompletableFuture<Void> eventFuture : eventFutures)
+				{
+					eventFuture.cancel(true);
+				}
+			}
+		});
+		return combinedFuture;
 	}
 	
+	/**
+	 * Imports every chunk that has been saved for this level, see {@link BulkChunkImporter} for details. <br>
+	 * Started by {@link BatchGenerationEnvironment#updateAllFutures()} when enabled in the config.
+	 * If an import is already running its progress is returned instead of starting a new one.
+	 */
+	private synchronized BulkChunkImporter startBulkImport(ExecutorService worldGeneratorThreadPool)
+	{
+		if (this.bulkChunkImporter == null || this.bulkChunkImporter.isDone())
+		{
+			if (this.bulkImportExecutor == null)
+			{
+				this.bulkImportExecutor = Executors.newSingleThreadExecutor((runnable) ->
+				{
+					Thread thread = new Thread(runnable, "DH-Bulk-Chunk-Importer");
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			
+			this.bulkChunkImporter = new BulkChunkImporter(
+					this, this.getRegionFileCache().getStorageFolderPath(), this.serverlevel.getServerLevelWrapper().getSaveFolder(),
+					worldGeneratorThreadPool, this.bulkImportExecutor, this::submitChunkToLevel);
+			this.bulkChunkImporter.start();
+		}
+		return this.bulkChunkImporter;
+	}
+	
+	/**
+	 * Sends a chunk to this level's LODs outside of any generation request,
+	 * the same way chunks saved by the server are.
+	 */
+	private void submitChunkToLevel(IChunkWrapper chunkWrapper) { ServerApi.INSTANCE.serverChunkSaveEvent(chunkWrapper, this.serverlevel.getServerLevelWrapper()); }
+	
 	/**
 	 * Called before code that may run for an extended period of time. <br>
 	 * This is necessary to allow canceling world gen since waiting
@@ -755,4 +1592,78 @@ public final class BatchGenerationEnvironment extends AbstractBatchGenerationEnv
 		}
 	}
 	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	/** @see BatchGenerationEnvironment#lightChunksInParallel */
+	private static class ParallelLightingTask
+	{
+		private final ArrayList<IChunkWrapper> chunkList;
+		private final int maxSkyLight;
+		private final AtomicInteger[] remainingDependencyCounts;
+		private final ArrayList<ArrayList<Integer>> dependentIndexLists;
+		private final AtomicInteger remainingChunkCount;
+		/** completed once every chunk has been lit, canceled or completed exceptionally if lighting should stop */
+		private final CompletableFuture<Void> allChunksLitFuture;
+		
+		public ParallelLightingTask(
+				ArrayList<IChunkWrapper> chunkList, int maxSkyLight, 
+				AtomicInteger[] remainingDependencyCounts, ArrayList<ArrayList<Integer>> dependentIndexLists,
+				CompletableFuture<Void> allChunksLitFuture)
+		{
+			this.chunkList = chunkList;
+			this.maxSkyLight = maxSkyLight;
+			this.remainingDependencyCounts = remainingDependencyCounts;
+			this.dependentIndexLists = dependentIndexLists;
+			this.remainingChunkCount = new AtomicInteger(chunkList.size());
+			this.allChunksLitFuture = allChunksLitFuture;
+		}
+		
+		public void submit(int index) { getParallelStepPool().execute(() -> this.run(index)); }
+		
+		private void run(int index)
+		{
+			if (this.allChunksLitFuture.isDone())
+			{
+				return;
+			}
+			
+			isDistantGeneratorThread.set(true);
+			try
+			{
+				lightChunk(this.chunkList, index, this.maxSkyLight);
+			}
+			catch (Throwable e)
+			{
+				this.allChunksLitFuture.completeExceptionally(e);
+				return;
+			}
+			finally
+			{
+				isDistantGeneratorThread.remove();
+			}
+			
+			
+			// start any chunks that were waiting on this one
+			ArrayList<Integer> dependentIndexList = this.dependentIndexLists.get(index);
+			for (int i = 0; i < dependentIndexList.size(); i++)
+			{
+				int dependentIndex = dependentIndexList.get(i);
+				if (this.remainingDependencyCounts[dependentIndex].decrementAndGet() == 0)
+				{
+					this.submit(dependentIndex);
+				}
+			}
+			
+			if (this.remainingChunkCount.decrementAndGet() == 0)
+			{
+				this.allChunksLitFuture.complete(null);
+			}
+		}
+		
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,237 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.core.config.Config;
+import com.seibel.distanthorizons.core.util.objects.EventTimer;
+
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines the {@link GenerationEvent} width that generates the most useful chunks per second. <br><br>
+ *
+ * Every event generates a ring of border chunks around the chunks that were actually requested,
+ * so larger events waste less of their time on borders.
+ * However, larger events also hold more chunks in memory, take longer per stage,
+ * and (depending on the generator) may get slower per chunk, so the largest width isn't always the fastest. <br><br>
+ *
+ * The width is limited by: <br>
+ * 1. a memory ceiling, shared between every event that can be in the pipeline at once. <br>
+ * 2. the recorded time per chunk of the slowest stage,
+ * so a single stage doesn't come close to the world generation timeout. <br><br>
+ *
+ * Within those limits the throughput (requested chunks per second of stage time) is recorded for each width
+ * and the width with the best throughput is used.
+ * Every few requests one of the best width's neighbors is tried instead,
+ * so the other widths' throughput stays up to date as the terrain being generated changes. <br><br>
+ *
+ * Requests larger than the returned width are split into multiple events by the {@link BatchGenerationEnvironment}.
+ */
+public class BatchSizeController
+{
+	public static final int SAMPLE_COUNT = 20;
+	/** timing limits won't be applied until this many events have been recorded */
+	public static final int MIN_SAMPLE_COUNT = 5;
+	
+	/** rough estimate for a partially generated ProtoChunk along with its wrapper and DH lighting */
+	public static final long ESTIMATED_BYTES_PER_CHUNK = 192 * 1024;
+	/** the fraction of the max heap size all in-progress events can use */
+	public static final double MAX_HEAP_FRACTION = 0.25;
+	/** the fraction of the world generation timeout a single stage should take, leaves room for slow outliers */
+	public static final double MAX_TIMEOUT_FRACTION = 0.25;
+	public static final int MIN_BATCH_WIDTH = 3;
+	/** how many of the most recent events are used to determine each width's throughput */
+	public static final int WIDTH_SAMPLE_COUNT = 10;
+	/** one in this many requests will use a width next to the best one */
+	public static final int EXPLORE_INTERVAL = 8;
+	
+	private final Rolling slowestStageNsPerChunk = new Rolling(SAMPLE_COUNT);
+	private int recordedEventCount = 0;
+	
+	private final HashMap<Integer, WidthThroughput> throughputByWidth = new HashMap<>();
+	private int widthRequestCount = 0;
+	/** alternates so both neighbors of the best width are tried */
+	private boolean exploreSmallerWidth = false;
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/**
+	 * Should be called once an event has finished.
+	 *
+	 * @param totalChunkCount the number of chunks the event generated, including the border chunks
+	 * @param eventWidth the width of the requested area, not including the border chunks
+	 */
+	public synchronized void recordEvent(EventTimer timer, int totalChunkCount, int eventWidth)
+	{
+		if (totalChunkCount <= 0)
+		{
+			return;
+		}
+		
+		long slowestStageNs = 0;
+		long totalStageNs = 0;
+		for (EventTimer.Event event : timer.events)
+		{
+			// time spent waiting for a stage to have room doesn't depend on the event's size
+			if (event.name.equals("queued"))
+			{
+				continue;
+			}
+			
+			slowestStageNs = Math.max(slowestStageNs, event.timeNs);
+			totalStageNs += event.timeNs;
+		}
+		
+		this.slowestStageNsPerChunk.add(slowestStageNs / (double) totalChunkCount);
+		this.recordedEventCount++;
+		
+		if (totalStageNs > 0)
+		{
+			double usefulChunksPerSecond = (eventWidth * eventWidth) / (totalStageNs / (double) TimeUnit.SECONDS.toNanos(1));
+			this.throughputByWidth.computeIfAbsent(eventWidth, (width) -> new WidthThroughput()).add(usefulChunksPerSecond);
+		}
+	}
+	
+	/**
+	 * @param borderWidth the number of border chunks added to each side of an event
+	 * @return the odd event width with the best recorded throughput that fits within the memory and time limits,
+	 * never less than {@link BatchSizeController#MIN_BATCH_WIDTH}
+	 */
+	public synchronized int getMaxBatchWidth(int borderWidth)
+	{
+		int maxWidth = this.getWidthCeiling(borderWidth);
+		
+		// the best measured width, widths without enough samples are ignored
+		int bestWidth = -1;
+		double bestThroughput = 0;
+		for (int width = MIN_BATCH_WIDTH; width <= maxWidth; width += 2)
+		{
+			WidthThroughput throughput = this.throughputByWidth.get(width);
+			if (throughput != null && throughput.sampleCount >= MIN_SAMPLE_COUNT 
+				&& throughput.getAverage() > bestThroughput)
+			{
+				bestWidth = width;
+				bestThroughput = throughput.getAverage();
+			}
+		}
+		
+		if (bestWidth == -1)
+		{
+			// nothing has been measured yet,
+			// start with the largest width since it has the smallest fraction of border chunks
+			return maxWidth;
+		}
+		
+		
+		this.widthRequestCount++;
+		if (this.widthRequestCount % EXPLORE_INTERVAL == 0)
+		{
+			this.exploreSmallerWidth = !this.exploreSmallerWidth;
+			int neighborWidth = bestWidth + (this.exploreSmallerWidth ? -2 : 2);
+			if (neighborWidth >= MIN_BATCH_WIDTH && neighborWidth <= maxWidth)
+			{
+				return neighborWidth;
+			}
+		}
+		
+		return bestWidth;
+	}
+	
+	/**
+	 * @return the largest odd event width that fits within the memory and time limits,
+	 * never less than {@link BatchSizeController#MIN_BATCH_WIDTH}
+	 */
+	private int getWidthCeiling(int borderWidth)
+	{
+		// memory limit
+		long maxChunksPerEvent = (long) (Runtime.getRuntime().maxMemory() * MAX_HEAP_FRACTION)
+				/ ESTIMATED_BYTES_PER_CHUNK / BatchGenerationEnvironment.getMaxEventsInPipeline();
+		int maxTotalWidth = (int) Math.sqrt(maxChunksPerEvent);
+		
+		// timing limit
+		double nsPerChunk = this.getAverage(this.slowestStageNsPerChunk);
+		if (this.recordedEventCount >= MIN_SAMPLE_COUNT && nsPerChunk > 0)
+		{
+			long timeoutNs = TimeUnit.NANOSECONDS.convert(Config.Client.Advanced.WorldGenerator.worldGenerationTimeoutLengthInSeconds.get(), TimeUnit.SECONDS);
+			int timedTotalWidth = (int) Math.sqrt((timeoutNs * MAX_TIMEOUT_FRACTION) / nsPerChunk);
+			maxTotalWidth = Math.min(maxTotalWidth, timedTotalWidth);
+		}
+		
+		int width = maxTotalWidth - (borderWidth * 2);
+		if (width % 2 == 0)
+		{
+			// vanilla world gen regions require odd widths
+			width--;
+		}
+		return Math.max(MIN_BATCH_WIDTH, width);
+	}
+	
+	/** {@link Rolling#getAverage()} includes the empty samples, which would underestimate the time until the buffer is full */
+	private double getAverage(Rolling rolling)
+	{
+		int sampleCount = Math.min(this.recordedEventCount, SAMPLE_COUNT);
+		return (sampleCount == 0) ? 0 : rolling.getAverage() * SAMPLE_COUNT / sampleCount;
+	}
+	
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("events: ").append(this.recordedEventCount)
+				.append(", slowest stage ns/chunk: ").append((long) this.getAverage(this.slowestStageNsPerChunk))
+				.append(", chunks/sec by width:");
+		new TreeMap<>(this.throughputByWidth).forEach((width, throughput) -> 
+				builder.append(" ").append(width).append("=").append((int) throughput.getAverage()));
+		return builder.toString();
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static class WidthThroughput
+	{
+		private final Rolling usefulChunksPerSecond = new Rolling(WIDTH_SAMPLE_COUNT);
+		public int sampleCount = 0;
+		
+		public void add(double chunksPerSecond)
+		{
+			this.usefulChunksPerSecond.add(chunksPerSecond);
+			this.sampleCount++;
+		}
+		
+		/** {@link Rolling#getAverage()} includes the empty samples, so they have to be excluded until the buffer is full */
+		public double getAverage()
+		{
+			int count = Math.min(this.sampleCount, WIDTH_SAMPLE_COUNT);
+			return (count == 0) ? 0 : this.usefulChunksPerSecond.getAverage() * WIDTH_SAMPLE_COUNT / count;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,556 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.RegionFileBatchReader;
+import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
+import com.seibel.distanthorizons.core.pos.DhChunkPos;
+import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.world.level.ChunkPos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Imports every chunk saved in a level's region files,
+ * so LODs can be built for an existing world without having to fly around it. <br><br>
+ *
+ * The region file headers are read first to find which chunks exist,
+ * then the world is split into square batches that are queued as {@link GenerationEvent}s.
+ * Batches where every chunk exists go through the import only path
+ * (see {@link GenerationEvent#isImportOnly}), partially saved batches are imported one chunk at a time.
+ * Nothing is ever generated, missing chunks are skipped. <br><br>
+ *
+ * The events run on the world generator threads, so the server's tick loop isn't involved.
+ * A single driver task, run on an executor owned by the {@link BatchGenerationEnvironment}, queues the events and reports progress. <br><br>
+ *
+ * Each region whose events have all finished is saved with the level,
+ * so an import that's interrupted (IE by the server stopping) continues where it left off
+ * and regions that were already imported are skipped in later sessions.
+ */
+public class BulkChunkImporter
+{
+	private static final ConfigBasedLogger LOGGER = BatchGenerationEnvironment.LOAD_LOGGER;
+	
+	private static final Pattern REGION_FILE_NAME_PATTERN = Pattern.compile("^r\\.(-?\\d+)\\.(-?\\d+)\\.mca$");
+	private static final int REGION_WIDTH_IN_CHUNKS = 32;
+	private static final long PROGRESS_LOG_INTERVAL_IN_NS = TimeUnit.NANOSECONDS.convert(10, TimeUnit.SECONDS);
+	/** how often the completed regions are written to disk while importing */
+	private static final long PROGRESS_SAVE_INTERVAL_IN_NS = TimeUnit.NANOSECONDS.convert(30, TimeUnit.SECONDS);
+	
+	
+	private final BatchGenerationEnvironment genEnvironment;
+	private final Path regionFolderPath;
+	private final File progressFile;
+	private final ExecutorService worldGeneratorThreadPool;
+	private final ExecutorService driverExecutor;
+	private final Consumer<IChunkWrapper> resultConsumer;
+	
+	/** must be odd, see {@link GenerationEvent#startEvent} */
+	private final int importBatchWidth = DhWorldGenSettings.bulkImportBatchWidth | 1;
+	/** 
+	 * Limits how many events the importer can have at once (waiting or in the pipeline)
+	 * to half of the pipeline, so player requested generation always has pipeline slots left. <br>
+	 * Import events also have a lower priority than requested events (see {@link GenerationEventPrioritizer#getPriority}) 
+	 * and aren't counted by {@link BatchGenerationEnvironment#getEventCount()}, so they don't throttle new requests.
+	 */
+	private final int eventLimit = Math.max(1, BatchGenerationEnvironment.getMaxEventsInPipeline() / 2);
+	private final Semaphore eventsInFlightSemaphore = new Semaphore(this.eventLimit);
+	private final CompletableFuture<Void> completionFuture = new CompletableFuture<>();
+	private volatile boolean isCanceled = false;
+	/** null until started */
+	private Future<?> driverFuture = null;
+	
+	private volatile long totalChunkCount = 0;
+	private final AtomicLong importedChunkCount = new AtomicLong(0);
+	private final AtomicLong processedChunkCount = new AtomicLong(0);
+	/** the minimum corner of every batch that has been queued, only used by the driver thread */
+	private final LongOpenHashSet queuedBatchPosSet = new LongOpenHashSet();
+	/** regions where every event has finished, including ones from previous sessions. Synchronized on itself */
+	private final LongOpenHashSet completedRegionPosSet = new LongOpenHashSet();
+	/** synchronized on {@link BulkChunkImporter#completedRegionPosSet} */
+	private boolean isProgressDirty = false;
+	private long lastProgressSaveTimeNs = System.nanoTime();
+	/** only one save can write the file at a time */
+	private final Object progressSaveLock = new Object();
+	
+	
+	
+	/** @param driverExecutor runs the task that queues the import's events, should be single threaded */
+	public BulkChunkImporter(
+			BatchGenerationEnvironment genEnvironment, Path regionFolderPath, File levelSaveFolder,
+			ExecutorService worldGeneratorThreadPool, ExecutorService driverExecutor, Consumer<IChunkWrapper> resultConsumer)
+	{
+		this.genEnvironment = genEnvironment;
+		this.regionFolderPath = regionFolderPath;
+		this.progressFile = new File(levelSaveFolder, "DistantHorizons" + File.separator + "bulkImportProgress.dat");
+		this.worldGeneratorThreadPool = worldGeneratorThreadPool;
+		this.driverExecutor = driverExecutor;
+		this.resultConsumer = resultConsumer;
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** @return a future that completes once every chunk has been imported or the import is canceled */
+	public synchronized CompletableFuture<Void> start()
+	{
+		if (this.driverFuture != null)
+		{
+			return this.completionFuture;
+		}
+		
+		try
+		{
+			this.driverFuture = this.driverExecutor.submit(this::runImport);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the environment is shutting down
+			this.completionFuture.cancel(false);
+		}
+		return this.completionFuture;
+	}
+	
+	/** 
+	 * Stops queuing new events and saves which regions have been completed, 
+	 * events that were already queued will still finish.
+	 */
+	public void cancel()
+	{
+		this.isCanceled = true;
+		synchronized (this)
+		{
+			if (this.driverFuture != null)
+			{
+				this.driverFuture.cancel(true);
+			}
+		}
+		// the driver task may have been canceled before it started, in which case it won't complete the future itself
+		this.completionFuture.cancel(false);
+		
+		this.saveProgress();
+	}
+	
+	public long getTotalChunkCount() { return this.totalChunkCount; }
+	/** includes chunks that couldn't be imported */
+	public long getProcessedChunkCount() { return this.processedChunkCount.get(); }
+	public long getImportedChunkCount() { return this.importedChunkCount.get(); }
+	public boolean isDone() { return this.completionFuture.isDone(); }
+	
+	
+	
+	//================//
+	// import process //
+	//================//
+	
+	private void runImport()
+	{
+		try
+		{
+			this.loadProgress();
+			
+			Long2ObjectOpenHashMap<long[]> existingChunkBitsByRegionPos = this.readRegionHeaders();
+			ArrayList<Long> regionPosList = new ArrayList<>();
+			synchronized (this.completedRegionPosSet)
+			{
+				for (long regionPos : existingChunkBitsByRegionPos.keySet())
+				{
+					if (!this.completedRegionPosSet.contains(regionPos))
+					{
+						regionPosList.add(regionPos);
+					}
+				}
+			}
+			
+			this.totalChunkCount = countExistingChunks(existingChunkBitsByRegionPos, regionPosList);
+			LOGGER.info("Bulk import starting, found [" + this.totalChunkCount + "] chunks in [" + regionPosList.size() + "] regions that haven't been imported yet, " +
+					"[" + (existingChunkBitsByRegionPos.size() - regionPosList.size()) + "] regions were imported previously.");
+			
+			// import the regions closest to the world's origin first, that's generally where players spend the most time
+			regionPosList.sort(Comparator.comparingLong((regionPos) ->
+			{
+				long regionX = ChunkPos.getX(regionPos);
+				long regionZ = ChunkPos.getZ(regionPos);
+				return (regionX * regionX) + (regionZ * regionZ);
+			}));
+			
+			long startTimeNs = System.nanoTime();
+			long lastLogTimeNs = startTimeNs;
+			for (long regionPos : regionPosList)
+			{
+				this.queueRegion(ChunkPos.getX(regionPos), ChunkPos.getZ(regionPos), existingChunkBitsByRegionPos);
+				
+				if (System.nanoTime() - lastLogTimeNs > PROGRESS_LOG_INTERVAL_IN_NS)
+				{
+					lastLogTimeNs = System.nanoTime();
+					this.logProgress(startTimeNs);
+				}
+			}
+			
+			// wait for the last events to finish
+			this.eventsInFlightSemaphore.acquire(this.eventLimit);
+			this.eventsInFlightSemaphore.release(this.eventLimit);
+			
+			this.saveProgress();
+			this.logProgress(startTimeNs);
+			LOGGER.info("Bulk import complete, imported [" + this.importedChunkCount.get() + "/" + this.totalChunkCount + "] chunks.");
+			this.completionFuture.complete(null);
+		}
+		catch (InterruptedException e)
+		{
+			LOGGER.info("Bulk import canceled after importing [" + this.importedChunkCount.get() + "/" + this.totalChunkCount + "] chunks.");
+			this.completionFuture.cancel(false);
+		}
+		catch (Exception e)
+		{
+			LOGGER.error("Bulk import failed, error: " + e.getMessage(), e);
+			this.completionFuture.completeExceptionally(e);
+		}
+	}
+	
+	private Long2ObjectOpenHashMap<long[]> readRegionHeaders() throws IOException
+	{
+		Long2ObjectOpenHashMap<long[]> existingChunkBitsByRegionPos = new Long2ObjectOpenHashMap<>();
+		if (!Files.isDirectory(this.regionFolderPath))
+		{
+			return existingChunkBitsByRegionPos;
+		}
+		
+		ArrayList<Path> regionFilePaths = new ArrayList<>();
+		try (Stream<Path> pathStream = Files.list(this.regionFolderPath))
+		{
+			pathStream.forEach(regionFilePaths::add);
+		}
+		
+		for (Path regionFilePath : regionFilePaths)
+		{
+			Matcher matcher = REGION_FILE_NAME_PATTERN.matcher(regionFilePath.getFileName().toString());
+			if (!matcher.matches())
+			{
+				continue;
+			}
+			
+			try
+			{
+				long[] existingChunkBits = RegionFileBatchReader.readExistingChunkBits(regionFilePath);
+				if (existingChunkBits != null)
+				{
+					long regionPos = ChunkPos.asLong(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+					existingChunkBitsByRegionPos.put(regionPos, existingChunkBits);
+				}
+			}
+			catch (IOException e)
+			{
+				LOGGER.warn("Unable to read region file header [" + regionFilePath + "], its chunks will be skipped. Error: " + e.getMessage());
+			}
+		}
+		return existingChunkBitsByRegionPos;
+	}
+	
+	/**
+	 * Queues every batch that overlaps the given region and hasn't been queued by a neighboring region. <br>
+	 * Batches are aligned to a world wide grid instead of each region,
+	 * since the import batch width doesn't evenly divide a region,
+	 * so batches along a region's edges also cover chunks in its neighbors (which may not have region files).
+	 */
+	private void queueRegion(int regionX, int regionZ, Long2ObjectOpenHashMap<long[]> existingChunkBitsByRegionPos) throws InterruptedException
+	{
+		RegionImport regionImport = new RegionImport(ChunkPos.asLong(regionX, regionZ));
+		
+		int regionMinChunkX = regionX * REGION_WIDTH_IN_CHUNKS;
+		int regionMinChunkZ = regionZ * REGION_WIDTH_IN_CHUNKS;
+		int firstBatchX = Math.floorDiv(regionMinChunkX, this.importBatchWidth) * this.importBatchWidth;
+		int firstBatchZ = Math.floorDiv(regionMinChunkZ, this.importBatchWidth) * this.importBatchWidth;
+		
+		for (int batchMinZ = firstBatchZ; batchMinZ < regionMinChunkZ + REGION_WIDTH_IN_CHUNKS; batchMinZ += this.importBatchWidth)
+		{
+			for (int batchMinX = firstBatchX; batchMinX < regionMinChunkX + REGION_WIDTH_IN_CHUNKS; batchMinX += this.importBatchWidth)
+			{
+				if (!this.queuedBatchPosSet.add(ChunkPos.asLong(batchMinX, batchMinZ)))
+				{
+					// already queued by a neighboring region
+					continue;
+				}
+				
+				ArrayList<ChunkPos> existingChunkPosList = new ArrayList<>();
+				for (int z = batchMinZ; z < batchMinZ + this.importBatchWidth; z++)
+				{
+					for (int x = batchMinX; x < batchMinX + this.importBatchWidth; x++)
+					{
+						if (chunkExists(x, z, existingChunkBitsByRegionPos))
+						{
+							existingChunkPosList.add(new ChunkPos(x, z));
+						}
+					}
+				}
+				
+				if (existingChunkPosList.size() == this.importBatchWidth * this.importBatchWidth)
+				{
+					this.queueEvent(batchMinX, batchMinZ, this.importBatchWidth, regionImport);
+				}
+				else
+				{
+					// generating the missing chunks isn't wanted, so each chunk has to be imported separately
+					for (ChunkPos chunkPos : existingChunkPosList)
+					{
+						this.queueEvent(chunkPos.x, chunkPos.z, 1, regionImport);
+					}
+				}
+			}
+		}
+		
+		// every event for this region has been queued
+		this.onRegionEventDone(regionImport);
+	}
+	
+	/** 
+	 * Batches that cross a region's edge belong to the region that queued them,
+	 * so a region is only complete once the events it queued have finished. 
+	 * If a neighbor's batch hasn't finished, that neighbor isn't complete and will queue the batch again next session.
+	 */
+	private void queueEvent(int minChunkX, int minChunkZ, int width, RegionImport regionImport) throws InterruptedException
+	{
+		if (this.isCanceled)
+		{
+			throw new InterruptedException("Bulk import canceled.");
+		}
+		this.eventsInFlightSemaphore.acquire();
+		
+		// the empty step means any chunk that wasn't fully generated will be used as-is
+		// instead of being generated further
+		GenerationEvent genEvent = GenerationEvent.startEvent(
+				new DhChunkPos(minChunkX, minChunkZ), width, this.genEnvironment,
+				EDhApiWorldGenerationStep.EMPTY, this::onChunkImported, this.worldGeneratorThreadPool,
+				false, true);
+		this.genEnvironment.trackEvent(genEvent);
+		regionImport.pendingEventCount.incrementAndGet();
+		
+		genEvent.future.whenComplete((result, throwable) ->
+		{
+			this.processedChunkCount.addAndGet((long) width * width);
+			this.eventsInFlightSemaphore.release();
+			
+			if (throwable != null)
+			{
+				// canceled (IE the server is stopping) or failed, the region will be imported again next time
+				regionImport.anyEventFailed = true;
+			}
+			this.onRegionEventDone(regionImport);
+		});
+	}
+	
+	private void onRegionEventDone(RegionImport regionImport)
+	{
+		if (regionImport.pendingEventCount.decrementAndGet() != 0 || regionImport.anyEventFailed)
+		{
+			return;
+		}
+		
+		boolean shouldSave;
+		synchronized (this.completedRegionPosSet)
+		{
+			this.completedRegionPosSet.add(regionImport.regionPos);
+			this.isProgressDirty = true;
+			
+			long currentTimeNs = System.nanoTime();
+			shouldSave = (currentTimeNs - this.lastProgressSaveTimeNs > PROGRESS_SAVE_INTERVAL_IN_NS);
+			if (shouldSave)
+			{
+				this.lastProgressSaveTimeNs = currentTimeNs;
+			}
+		}
+		
+		if (shouldSave)
+		{
+			this.saveProgress();
+		}
+	}
+	
+	private void onChunkImported(IChunkWrapper chunkWrapper)
+	{
+		this.importedChunkCount.incrementAndGet();
+		this.resultConsumer.accept(chunkWrapper);
+	}
+	
+	private void logProgress(long startTimeNs)
+	{
+		long processedCount = this.processedChunkCount.get();
+		double elapsedSeconds = (System.nanoTime() - startTimeNs) / 1_000_000_000.0;
+		double chunksPerSecond = (elapsedSeconds > 0) ? (processedCount / elapsedSeconds) : 0;
+		long remainingSeconds = (chunksPerSecond > 0) ? (long) ((this.totalChunkCount - processedCount) / chunksPerSecond) : -1;
+		double percentComplete = (this.totalChunkCount > 0) ? (processedCount * 100.0 / this.totalChunkCount) : 100.0;
+		
+		LOGGER.info(String.format("Bulk import progress: [%d/%d] chunks (%.1f%%), [%.0f] chunks/sec, about [%d] seconds remaining.",
+				processedCount, this.totalChunkCount, percentComplete, chunksPerSecond, remainingSeconds));
+	}
+	
+	
+	
+	//================//
+	// static helpers //
+	//================//
+	
+	private static boolean chunkExists(int chunkX, int chunkZ, Long2ObjectOpenHashMap<long[]> existingChunkBitsByRegionPos)
+	{
+		long regionPos = ChunkPos.asLong(Math.floorDiv(chunkX, REGION_WIDTH_IN_CHUNKS), Math.floorDiv(chunkZ, REGION_WIDTH_IN_CHUNKS));
+		long[] existingChunkBits = existingChunkBitsByRegionPos.get(regionPos);
+		return existingChunkBits != null
+				&& RegionFileBatchReader.isChunkBitSet(existingChunkBits, Math.floorMod(chunkX, REGION_WIDTH_IN_CHUNKS), Math.floorMod(chunkZ, REGION_WIDTH_IN_CHUNKS));
+	}
+	
+	private static long countExistingChunks(Long2ObjectOpenHashMap<long[]> existingChunkBitsByRegionPos, ArrayList<Long> regionPosList)
+	{
+		long count = 0;
+		for (long regionPos : regionPosList)
+		{
+			for (long bits : existingChunkBitsByRegionPos.get(regionPos))
+			{
+				count += Long.bitCount(bits);
+			}
+		}
+		return count;
+	}
+	
+	
+	
+	//=============//
+	// persistence //
+	//=============//
+	
+	/** Writes the completed regions to disk if they've changed. */
+	private void saveProgress()
+	{
+		synchronized (this.progressSaveLock)
+		{
+			long[] completedRegionPositions;
+			synchronized (this.completedRegionPosSet)
+			{
+				if (!this.isProgressDirty)
+				{
+					return;
+				}
+				completedRegionPositions = this.completedRegionPosSet.toLongArray();
+				this.isProgressDirty = false;
+			}
+			
+			CompoundTag rootTag = new CompoundTag();
+			rootTag.putLongArray("completedRegions", completedRegionPositions);
+			try
+			{
+				Files.createDirectories(this.progressFile.getParentFile().toPath());
+				
+				// write to a temporary file first so a crash while writing doesn't corrupt the existing file
+				File tempFile = new File(this.progressFile.getPath() + ".tmp");
+				try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile.toPath())))))
+				{
+					NbtIo.write(rootTag, stream);
+				}
+				Files.move(tempFile.toPath(), this.progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (IOException e)
+			{
+				synchronized (this.completedRegionPosSet)
+				{
+					this.isProgressDirty = true;
+				}
+				LOGGER.warn("Unable to save bulk import progress to [" + this.progressFile + "], error: " + e.getMessage());
+			}
+		}
+	}
+	
+	private void loadProgress()
+	{
+		if (!this.progressFile.exists())
+		{
+			return;
+		}
+		
+		CompoundTag rootTag;
+		try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(this.progressFile.toPath())))))
+		{
+			rootTag = NbtIo.read(stream);
+		}
+		catch (Exception e)
+		{
+			// every region will be imported again
+			LOGGER.warn("Unable to read bulk import progress from [" + this.progressFile + "], error: " + e.getMessage());
+			return;
+		}
+		
+		synchronized (this.completedRegionPosSet)
+		{
+			for (long regionPos : rootTag.getLongArray("completedRegions"))
+			{
+				this.completedRegionPosSet.add(regionPos);
+			}
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	/** tracks the events queued for a single region */
+	private static class RegionImport
+	{
+		public final long regionPos;
+		/** starts at 1 so the region can't complete while its events are still being queued */
+		public final AtomicInteger pendingEventCount = new AtomicInteger(1);
+		public volatile boolean anyEventFailed = false;
+		
+		public RegionImport(long regionPos) { this.regionPos = regionPos; }
+		
+	}
+	
+}
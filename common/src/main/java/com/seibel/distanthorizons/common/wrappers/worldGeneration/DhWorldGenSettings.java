@@ -0,0 +1,122 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Settings used by the {@link BatchGenerationEnvironment} that don't have entries in core's Config. <br>
+ * They are kept here, in one place, so they can be moved into the Config once core has them. <br><br>
+ *
+ * The thread count isn't a setting, it's read from the world generator thread pool core provides
+ * (which is sized from core's world generator thread config).
+ */
+public final class DhWorldGenSettings
+{
+	//=================//
+	// chunk importing //
+	//=================//
+	
+	/**
+	 * If true the region file headers are checked before each event is set up
+	 * and events whose chunks have all been generated skip the generator entirely.
+	 */
+	public static boolean useExistingChunkImport = true;
+	/** If true chunks loaded from disk use the light Minecraft saved with them instead of being re-lit by DH. */
+	public static boolean useSavedLighting = true;
+	/**
+	 * If true region files will be memory mapped instead of read with positional reads. <br>
+	 * Disabled by default since some operating systems (IE Windows)
+	 * prevent resizing a file while it's mapped, which the server may need to do while we're reading.
+	 */
+	public static boolean useMemoryMappedRegionFiles = false;
+	/** If true every existing region file in the level is imported once, see {@link BulkChunkImporter}. */
+	public static boolean importExistingChunks = false;
+	/** must be odd, see {@link GenerationEvent#startEvent} */
+	public static int bulkImportBatchWidth = 7;
+	
+	
+	
+	//============//
+	// generation //
+	//============//
+	
+	/** If true events that stop at the surface step get simple trees, see {@link com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepSyntheticCanopy}. */
+	public static boolean useSyntheticCanopy = true;
+	/** If false each event's chunks will be lit one at a time on the light stage's thread. */
+	public static boolean useParallelLighting = true;
+	/** If false each event's chunks will be decorated one at a time on the feature stage's thread, see {@link com.seibel.distanthorizons.common.wrappers.worldGeneration.step.StepFeatures}. */
+	public static boolean useParallelFeatures = true;
+	/** can be disabled if a mod's structures can't be serialized, see {@link StructureStartCache} */
+	public static boolean useStructureStartCache = true;
+	/** can be disabled if a mod modifies vanilla's structure placement in a way that isn't thread safe */
+	public static boolean useStripedStructureLocking = true;
+	
+	
+	
+	//=============//
+	// depth tiers //
+	//=============//
+	
+	/** If false every request is generated to the step it asked for, see {@link GenerationDepthTiers}. */
+	public static boolean useDistanceTiers = true;
+	/** requests closer than this will be generated to the step they asked for */
+	public static int fullDetailDistanceInChunks = 128;
+	/** requests between the full detail distance and this will stop at the surface step */
+	public static int surfaceDistanceInChunks = 512;
+	/** the step requests further than {@link DhWorldGenSettings#surfaceDistanceInChunks} will stop at */
+	public static EDhApiWorldGenerationStep horizonStep = EDhApiWorldGenerationStep.NOISE;
+	
+	
+	
+	//==============//
+	// thread count //
+	//==============//
+	
+	/** used until the first request provides core's world generator thread pool */
+	private static volatile int worldGenThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
+	
+	
+	private DhWorldGenSettings() { }
+	
+	
+	
+	/** @return the number of threads in core's world generator thread pool, never less than 1 */
+	public static int getWorldGenThreadCount() { return worldGenThreadCount; }
+	
+	/**
+	 * Called whenever core provides its world generator thread pool
+	 * so the thread count follows any changes to core's thread config.
+	 */
+	public static void updateWorldGenThreadCount(ExecutorService worldGeneratorThreadPool)
+	{
+		if (worldGeneratorThreadPool instanceof ThreadPoolExecutor)
+		{
+			// unbounded pools (IE cached thread pools) shouldn't result in unbounded budgets
+			int poolSize = ((ThreadPoolExecutor) worldGeneratorThreadPool).getMaximumPoolSize();
+			worldGenThreadCount = Math.max(1, Math.min(poolSize, Runtime.getRuntime().availableProcessors()));
+		}
+	}
+	
+}
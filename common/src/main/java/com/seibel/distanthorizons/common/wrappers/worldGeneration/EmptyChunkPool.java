@@ -0,0 +1,143 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.ChunkStatus;
+import net.minecraft.world.level.chunk.ImposterProtoChunk;
+import net.minecraft.world.level.chunk.LevelChunkSection;
+import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.chunk.UpgradeData;
+#if MC_VER >= MC_1_18_2
+import net.minecraft.world.ticks.ProtoChunkTicks;
+#endif
+
+/**
+ * Creates the empty {@link ProtoChunk}s used for chunks that don't exist on disk. <br><br>
+ *
+ * Since 1.18.2 every new proto chunk allocates all of its sections up front,
+ * so the sections of border chunks that were never generated (and are only air)
+ * are kept once their event is done and given to the next empty chunk instead. <br>
+ * A chunk's position can't be changed, so only the sections are re-used, not the chunks themselves. <br><br>
+ *
+ * The pool is shared between threads since chunks are generally created by the setup stage
+ * and discarded by the light stage, which can run on different threads.
+ */
+public class EmptyChunkPool
+{
+	/** each pooled entry holds a full column of sections */
+	public static final int MAX_POOLED_SECTION_ARRAYS = 256;
+	
+	private final GlobalParameters params;
+	
+	private final ConcurrentLinkedQueue<LevelChunkSection[]> pooledSectionArrays = new ConcurrentLinkedQueue<>();
+	/** the queue's size() isn't constant time, so its size is tracked separately */
+	private final AtomicInteger pooledCount = new AtomicInteger(0);
+	
+	private final AtomicLong reusedCount = new AtomicLong(0);
+	private final AtomicLong createdCount = new AtomicLong(0);
+	
+	
+	
+	public EmptyChunkPool(GlobalParameters params) { this.params = params; }
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	public ProtoChunk create(ChunkPos chunkPos)
+	{
+		#if MC_VER < MC_1_18_2
+		// sections are only created when something is written to them, so there's nothing to re-use
+		this.createdCount.incrementAndGet();
+		return new ProtoChunk(chunkPos, UpgradeData.EMPTY #if MC_VER >= MC_1_17_1 , this.params.level #endif );
+		#else
+		LevelChunkSection[] sections = this.pooledSectionArrays.poll();
+		if (sections != null)
+		{
+			this.pooledCount.decrementAndGet();
+			this.reusedCount.incrementAndGet();
+		}
+		else
+		{
+			this.createdCount.incrementAndGet();
+		}
+		
+		// null sections are created by the chunk
+		return new ProtoChunk(chunkPos, UpgradeData.EMPTY, sections,
+				new ProtoChunkTicks<>(), new ProtoChunkTicks<>(),
+				this.params.level, this.params.biomes, null);
+		#endif
+	}
+	
+	/**
+	 * Keeps the given chunk's sections if it was never generated. <br>
+	 * The chunk must not be used after this is called.
+	 */
+	public void recycle(ProtoChunk chunk)
+	{
+		#if MC_VER >= MC_1_18_2
+		// imposter chunks wrap chunks that are still in use
+		if (chunk instanceof ImposterProtoChunk || chunk.getStatus() != ChunkStatus.EMPTY)
+		{
+			return;
+		}
+		
+		if (this.pooledCount.get() >= MAX_POOLED_SECTION_ARRAYS)
+		{
+			return;
+		}
+		
+		// features can place blocks in neighboring chunks, so non-air sections are left for the chunk to re-create
+		LevelChunkSection[] sections = chunk.getSections().clone();
+		boolean anySectionReused = false;
+		for (int i = 0; i < sections.length; i++)
+		{
+			if (sections[i] != null && !sections[i].hasOnlyAir())
+			{
+				sections[i] = null;
+			}
+			anySectionReused |= (sections[i] != null);
+		}
+		
+		if (anySectionReused)
+		{
+			this.pooledCount.incrementAndGet();
+			this.pooledSectionArrays.add(sections);
+		}
+		#endif
+	}
+	
+	public void clear()
+	{
+		this.pooledSectionArrays.clear();
+		this.pooledCount.set(0);
+	}
+	
+	@Override
+	public String toString() { return "pooled: " + this.pooledCount.get() + ", reused: " + this.reusedCount.get() + ", created: " + this.createdCount.get(); }
+	
+}
@@ -0,0 +1,455 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.world.level.ChunkPos;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Determines how far each generation request should be generated based on its distance to the players. <br><br>
+ *
+ * Features are by far the most expensive step, but can't be seen from far away,
+ * so distant requests stop at an earlier step. <br>
+ * The request itself still completes once that step is done, so every request that was stopped early
+ * is remembered and saved with the level (so it isn't lost on restart)
+ * until a player gets close enough for it to be generated again with more detail. <br><br>
+ *
+ * The remembered requests are grouped into 32x32 chunk regions,
+ * so checking for upgrades only has to look at the regions near each player
+ * and saving only has to write the regions that changed (each region is its own file).
+ * At most {@link GenerationDepthTiers#MAX_PENDING_UPGRADES} requests are remembered, the oldest are forgotten first.
+ */
+public class GenerationDepthTiers
+{
+	private static final ConfigBasedLogger LOGGER = BatchGenerationEnvironment.EVENT_LOGGER;
+	
+	/** how often the remembered requests are checked */
+	public static final long UPGRADE_CHECK_INTERVAL_IN_NS = TimeUnit.NANOSECONDS.convert(1, TimeUnit.SECONDS);
+	/** how often the remembered requests are written to disk if they've changed */
+	public static final long SAVE_INTERVAL_IN_NS = TimeUnit.NANOSECONDS.convert(30, TimeUnit.SECONDS);
+	/** 
+	 * Forgotten requests are never upgraded, which only costs detail, 
+	 * so this is a limit on memory and save size rather than something that should normally be reached.
+	 */
+	public static final int MAX_PENDING_UPGRADES = 100_000;
+	private static final int REGION_WIDTH_IN_CHUNKS = 32;
+	
+	private final File saveFolder;
+	
+	/** keyed by the request's minimum chunk position, ordered from oldest to newest, synchronized on this object */
+	private final Long2ObjectLinkedOpenHashMap<PendingUpgrade> pendingUpgradeByPos = new Long2ObjectLinkedOpenHashMap<>();
+	/** the same requests as {@link GenerationDepthTiers#pendingUpgradeByPos} grouped by region, synchronized on this object */
+	private final Long2ObjectOpenHashMap<UpgradeRegion> regionByPos = new Long2ObjectOpenHashMap<>();
+	/** regions that have changed since they were last saved, including ones that are now empty. Synchronized on this object */
+	private final LongOpenHashSet dirtyRegionPositions = new LongOpenHashSet();
+	/** the largest request width that has been remembered, used to determine which regions a player could be close enough to */
+	private int maxGenSize = 1;
+	private long lastUpgradeCheckTimeNs = 0;
+	private long lastSaveTimeNs = System.nanoTime();
+	/** only one save can write the files at a time */
+	private final Object saveLock = new Object();
+	
+	
+	
+	public GenerationDepthTiers(File levelSaveFolder)
+	{
+		this.saveFolder = new File(levelSaveFolder, "DistantHorizons" + File.separator + "pendingUpgrades");
+		this.load();
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/**
+	 * @param distanceInChunks -1 if no players are present, in which case the world is probably being pre-generated
+	 *                         and the requested step is always used
+	 * @return the step the request should be generated to, never after the requested step
+	 */
+	public static EDhApiWorldGenerationStep getTargetStep(EDhApiWorldGenerationStep requestedStep, double distanceInChunks)
+	{
+		// requests closer than the full detail distance are generated to the step they asked for,
+		// requests between the full detail and surface distances stop at the surface step,
+		// and anything further stops at the horizon step
+		if (!DhWorldGenSettings.useDistanceTiers
+			|| distanceInChunks < DhWorldGenSettings.fullDetailDistanceInChunks)
+		{
+			return requestedStep;
+		}
+		
+		EDhApiWorldGenerationStep tierStep = (distanceInChunks < DhWorldGenSettings.surfaceDistanceInChunks)
+				? EDhApiWorldGenerationStep.SURFACE
+				: DhWorldGenSettings.horizonStep;
+		return isBefore(tierStep, requestedStep) ? tierStep : requestedStep;
+	}
+	
+	/** 
+	 * Remembers a request that was generated to an earlier step than it asked for. <br>
+	 * Replaces any request already remembered for the same position.
+	 */
+	public synchronized void addPendingUpgrade(
+			int minX, int minZ, int genSize,
+			EDhApiWorldGenerationStep requestedStep, EDhApiWorldGenerationStep generatedStep)
+	{
+		this.add(new PendingUpgrade(minX, minZ, genSize, requestedStep, generatedStep));
+		
+		while (this.pendingUpgradeByPos.size() > MAX_PENDING_UPGRADES)
+		{
+			this.remove(this.pendingUpgradeByPos.get(this.pendingUpgradeByPos.firstLongKey()));
+		}
+	}
+	
+	/** the lock on this object must be held */
+	private void add(PendingUpgrade upgrade)
+	{
+		long pos = ChunkPos.asLong(upgrade.minX, upgrade.minZ);
+		PendingUpgrade oldUpgrade = this.pendingUpgradeByPos.remove(pos);
+		if (oldUpgrade != null)
+		{
+			this.remove(oldUpgrade);
+		}
+		
+		this.pendingUpgradeByPos.putAndMoveToLast(pos, upgrade);
+		long regionPos = getRegionPos(upgrade.minX, upgrade.minZ);
+		this.regionByPos.computeIfAbsent(regionPos, (newRegionPos) -> new UpgradeRegion()).upgradeByPos.put(pos, upgrade);
+		this.dirtyRegionPositions.add(regionPos);
+		this.maxGenSize = Math.max(this.maxGenSize, upgrade.genSize);
+	}
+	
+	/** the lock on this object must be held */
+	private void remove(PendingUpgrade upgrade)
+	{
+		long pos = ChunkPos.asLong(upgrade.minX, upgrade.minZ);
+		this.pendingUpgradeByPos.remove(pos);
+		
+		long regionPos = getRegionPos(upgrade.minX, upgrade.minZ);
+		UpgradeRegion region = this.regionByPos.get(regionPos);
+		if (region != null)
+		{
+			region.upgradeByPos.remove(pos);
+			if (region.upgradeByPos.isEmpty())
+			{
+				this.regionByPos.remove(regionPos);
+			}
+		}
+		this.dirtyRegionPositions.add(regionPos);
+	}
+	
+	/**
+	 * Removes and returns every remembered request that a player is now close enough to
+	 * for it to be generated to a later step. <br>
+	 * Only the regions near the players are checked. <br>
+	 * Returns an empty list if the requests were checked recently.
+	 */
+	public synchronized ArrayList<PendingUpgrade> pollUpgradesInRange(GenerationEventPrioritizer prioritizer)
+	{
+		ArrayList<PendingUpgrade> upgrades = new ArrayList<>();
+		
+		long currentTimeNs = System.nanoTime();
+		if (currentTimeNs - this.lastUpgradeCheckTimeNs < UPGRADE_CHECK_INTERVAL_IN_NS)
+		{
+			return upgrades;
+		}
+		this.lastUpgradeCheckTimeNs = currentTimeNs;
+		
+		if (this.regionByPos.isEmpty())
+		{
+			return upgrades;
+		}
+		
+		
+		// requests further than the surface distance can't be upgraded,
+		// the largest request width is added since requests are measured from their center
+		int searchRadiusInChunks = Math.max(DhWorldGenSettings.fullDetailDistanceInChunks, DhWorldGenSettings.surfaceDistanceInChunks) + this.maxGenSize;
+		int searchRadiusInRegions = Math.floorDiv(searchRadiusInChunks, REGION_WIDTH_IN_CHUNKS) + 1;
+		
+		LongOpenHashSet checkedRegionPositions = new LongOpenHashSet();
+		for (ChunkPos playerChunkPos : prioritizer.getPlayerChunkPositions())
+		{
+			int playerRegionX = Math.floorDiv(playerChunkPos.x, REGION_WIDTH_IN_CHUNKS);
+			int playerRegionZ = Math.floorDiv(playerChunkPos.z, REGION_WIDTH_IN_CHUNKS);
+			for (int regionX = playerRegionX - searchRadiusInRegions; regionX <= playerRegionX + searchRadiusInRegions; regionX++)
+			{
+				for (int regionZ = playerRegionZ - searchRadiusInRegions; regionZ <= playerRegionZ + searchRadiusInRegions; regionZ++)
+				{
+					long regionPos = ChunkPos.asLong(regionX, regionZ);
+					UpgradeRegion region = this.regionByPos.get(regionPos);
+					if (region == null || !checkedRegionPositions.add(regionPos))
+					{
+						continue;
+					}
+					
+					this.pollUpgradesInRegion(region, prioritizer, upgrades);
+				}
+			}
+		}
+		
+		for (PendingUpgrade upgrade : upgrades)
+		{
+			this.remove(upgrade);
+		}
+		return upgrades;
+	}
+	
+	/** the lock on this object must be held */
+	private void pollUpgradesInRegion(UpgradeRegion region, GenerationEventPrioritizer prioritizer, ArrayList<PendingUpgrade> upgrades)
+	{
+		Iterator<PendingUpgrade> iterator = region.upgradeByPos.values().iterator();
+		while (iterator.hasNext())
+		{
+			PendingUpgrade upgrade = iterator.next();
+			double distanceInChunks = prioritizer.getDistanceToNearestPlayer(
+					upgrade.minX + (upgrade.genSize / 2.0),
+					upgrade.minZ + (upgrade.genSize / 2.0));
+			if (distanceInChunks < 0)
+			{
+				// no players are present
+				continue;
+			}
+			
+			EDhApiWorldGenerationStep newStep = getTargetStep(upgrade.requestedStep, distanceInChunks);
+			if (isBefore(upgrade.generatedStep, newStep))
+			{
+				upgrades.add(upgrade);
+			}
+		}
+	}
+	
+	/** Uses {@link BatchGenerationEnvironment#BorderNeeded} since its steps are in generation order. */
+	private static boolean isBefore(EDhApiWorldGenerationStep step, EDhApiWorldGenerationStep otherStep)
+	{
+		return BatchGenerationEnvironment.BorderNeeded.keySet().asList().indexOf(step)
+				< BatchGenerationEnvironment.BorderNeeded.keySet().asList().indexOf(otherStep);
+	}
+	
+	private static long getRegionPos(int chunkX, int chunkZ) { return ChunkPos.asLong(Math.floorDiv(chunkX, REGION_WIDTH_IN_CHUNKS), Math.floorDiv(chunkZ, REGION_WIDTH_IN_CHUNKS)); }
+	
+	
+	
+	//=============//
+	// persistence //
+	//=============//
+	
+	/** Saves the changed regions on the given executor if they haven't been saved recently. */
+	public void trySaveAsync(Executor executor)
+	{
+		synchronized (this)
+		{
+			long currentTimeNs = System.nanoTime();
+			if (this.dirtyRegionPositions.isEmpty() || currentTimeNs - this.lastSaveTimeNs < SAVE_INTERVAL_IN_NS)
+			{
+				return;
+			}
+			this.lastSaveTimeNs = currentTimeNs;
+		}
+		
+		try
+		{
+			executor.execute(this::save);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the world generator is shutting down, the requests will be saved when it stops
+		}
+	}
+	
+	/** Writes every region that has changed to disk, regions without any requests have their file deleted. */
+	public void save()
+	{
+		synchronized (this.saveLock)
+		{
+			// null tags mean the region is now empty
+			Long2ObjectOpenHashMap<CompoundTag> tagByRegionPos = new Long2ObjectOpenHashMap<>();
+			synchronized (this)
+			{
+				if (this.dirtyRegionPositions.isEmpty())
+				{
+					return;
+				}
+				
+				for (long regionPos : this.dirtyRegionPositions)
+				{
+					UpgradeRegion region = this.regionByPos.get(regionPos);
+					tagByRegionPos.put(regionPos, (region != null) ? region.toTag() : null);
+				}
+				this.dirtyRegionPositions.clear();
+			}
+			
+			// writing is done outside the lock so the server thread doesn't have to wait on the disk
+			for (Long2ObjectMap.Entry<CompoundTag> entry : tagByRegionPos.long2ObjectEntrySet())
+			{
+				long regionPos = entry.getLongKey();
+				File regionFile = new File(this.saveFolder, "r." + ChunkPos.getX(regionPos) + "." + ChunkPos.getZ(regionPos) + ".dat");
+				try
+				{
+					CompoundTag regionTag = entry.getValue();
+					if (regionTag == null)
+					{
+						Files.deleteIfExists(regionFile.toPath());
+						continue;
+					}
+					
+					Files.createDirectories(this.saveFolder.toPath());
+					
+					// write to a temporary file first so a crash while writing doesn't corrupt the existing file
+					File tempFile = new File(regionFile.getPath() + ".tmp");
+					try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile.toPath())))))
+					{
+						NbtIo.write(regionTag, stream);
+					}
+					Files.move(tempFile.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (IOException e)
+				{
+					synchronized (this)
+					{
+						this.dirtyRegionPositions.add(regionPos);
+					}
+					LOGGER.warn("Unable to save pending generation upgrades to [" + regionFile + "], error: " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	private synchronized void load()
+	{
+		File[] regionFiles = this.saveFolder.listFiles((file) -> file.getName().endsWith(".dat"));
+		if (regionFiles == null)
+		{
+			return;
+		}
+		
+		for (File regionFile : regionFiles)
+		{
+			CompoundTag regionTag;
+			try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(regionFile.toPath())))))
+			{
+				regionTag = NbtIo.read(stream);
+			}
+			catch (Exception e)
+			{
+				// the file will be overwritten the next time this region is saved
+				LOGGER.warn("Unable to read pending generation upgrades from [" + regionFile + "], error: " + e.getMessage());
+				continue;
+			}
+			
+			ListTag upgradeListTag = regionTag.getList("upgrades", 10);
+			for (int i = 0; i < upgradeListTag.size(); i++)
+			{
+				CompoundTag upgradeTag = upgradeListTag.getCompound(i);
+				try
+				{
+					this.add(new PendingUpgrade(
+							upgradeTag.getInt("minX"), upgradeTag.getInt("minZ"), upgradeTag.getInt("size"),
+							EDhApiWorldGenerationStep.valueOf(upgradeTag.getString("requestedStep")),
+							EDhApiWorldGenerationStep.valueOf(upgradeTag.getString("generatedStep"))));
+				}
+				catch (IllegalArgumentException e)
+				{
+					// the step no longer exists, skip it
+				}
+			}
+		}
+		
+		// nothing has changed since the files were written
+		this.dirtyRegionPositions.clear();
+		LOGGER.info("Loaded [" + this.pendingUpgradeByPos.size() + "] pending generation upgrades.");
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	public static class PendingUpgrade
+	{
+		public final int minX;
+		public final int minZ;
+		public final int genSize;
+		public final EDhApiWorldGenerationStep requestedStep;
+		public final EDhApiWorldGenerationStep generatedStep;
+		
+		public PendingUpgrade(
+				int minX, int minZ, int genSize,
+				EDhApiWorldGenerationStep requestedStep, EDhApiWorldGenerationStep generatedStep)
+		{
+			this.minX = minX;
+			this.minZ = minZ;
+			this.genSize = genSize;
+			this.requestedStep = requestedStep;
+			this.generatedStep = generatedStep;
+		}
+		
+	}
+	
+	/** the requests in a single 32x32 chunk region */
+	private static class UpgradeRegion
+	{
+		public final Long2ObjectOpenHashMap<PendingUpgrade> upgradeByPos = new Long2ObjectOpenHashMap<>();
+		
+		public CompoundTag toTag()
+		{
+			ListTag upgradeListTag = new ListTag();
+			for (PendingUpgrade upgrade : this.upgradeByPos.values())
+			{
+				CompoundTag upgradeTag = new CompoundTag();
+				upgradeTag.putInt("minX", upgrade.minX);
+				upgradeTag.putInt("minZ", upgrade.minZ);
+				upgradeTag.putInt("size", upgrade.genSize);
+				upgradeTag.putString("requestedStep", upgrade.requestedStep.name());
+				upgradeTag.putString("generatedStep", upgrade.generatedStep.name());
+				upgradeListTag.add(upgradeTag);
+			}
+			
+			CompoundTag rootTag = new CompoundTag();
+			rootTag.put("upgrades", upgradeListTag);
+			return rootTag;
+		}
+		
+	}
+	
+}
@@ -21,20 +21,28 @@ package com.seibel.distanthorizons.common.wrappers.worldGeneration;
 
 import java.lang.invoke.MethodHandles;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 
 import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.DhLitWorldGenRegion;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 import com.seibel.distanthorizons.core.generation.WorldGenerationQueue;
 import com.seibel.distanthorizons.core.util.ThreadUtil;
 import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
 import com.seibel.distanthorizons.core.pos.DhChunkPos;
 import com.seibel.distanthorizons.core.util.objects.EventTimer;
+import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
 import com.seibel.distanthorizons.core.util.threading.ThreadPools;
 import com.seibel.distanthorizons.core.wrapperInterfaces.chunk.IChunkWrapper;
 
+import net.minecraft.world.level.chunk.ChunkStatus;
+
 import org.apache.logging.log4j.Logger;
 
 public final class GenerationEvent
@@ -52,12 +60,51 @@ public final class GenerationEvent
 	public long timeoutTime = -1;
 	public CompletableFuture<Void> future = null;
 	public final Consumer<IChunkWrapper> resultConsumer;
+	/** the world generator thread pool each of this event's pipeline stages are run on */
+	public final Executor executor;
+	
+	/** populated by the setup stage */
+	public DhLitWorldGenRegion region = null;
+	/** 
+	 * Populated by the setup stage. <br>
+	 * Kept on the event instead of in {@link ThreadedParameters} since multiple events created on the same thread
+	 * can be in the pipeline at once.
+	 */
+	public WorldGenStructFeatManager structFeat = null;
+	/** populated by the setup stage, includes the border chunks */
+	public ArrayGridList<ChunkWrapper> chunkWrapperList = null;
+	/** 
+	 * The status each chunk in {@link GenerationEvent#chunkWrapperList} had when the last stage finished. <br>
+	 * A chunk's own status is set before its step runs, so it can't be used to tell which steps actually completed.
+	 */
+	public volatile ChunkStatus[] completedStatuses = null;
+	/** 
+	 * Set when this event times out. <br>
+	 * The chunks are salvaged by the thread running the event's current stage once that stage has exited,
+	 * so they are never emitted while the stuck stage could still be modifying them.
+	 */
+	public volatile boolean salvageRequested = false;
+	/** the thread running one of this event's stages, null while the event is queued. Synchronized on this event. */
+	private Thread runningThread = null;
+	/** set once this event has given up its pipeline slot, see {@link GenerationEvent#tryMarkLeftPipeline()} */
+	private final AtomicBoolean leftPipeline = new AtomicBoolean(false);
+	/** true if this event is re-generating chunks that couldn't be salvaged from a timed out event */
+	public final boolean isSalvageRetry;
+	/** true if this event was queued by a {@link BulkChunkImporter}, these events aren't tied to any player's position */
+	public final boolean isBulkImport;
+	/** 
+	 * Set by the setup stage if every requested chunk was already generated, 
+	 * in which case the chunks are only loaded, lit, and emitted. <br>
+	 * Import only events don't have a border, so {@link GenerationEvent#chunkWrapperList} only contains the requested chunks.
+	 */
+	public volatile boolean isImportOnly = false;
 	
 	
 	
 	public GenerationEvent(
 			DhChunkPos minPos, int size, BatchGenerationEnvironment generationGroup,
-			EDhApiWorldGenerationStep targetGenerationStep, Consumer<IChunkWrapper> resultConsumer)
+			EDhApiWorldGenerationStep targetGenerationStep, Consumer<IChunkWrapper> resultConsumer,
+			Executor executor, boolean isSalvageRetry, boolean isBulkImport)
 	{
 		this.inQueueTime = System.nanoTime();
 		this.id = generationFutureDebugIDs++;
@@ -66,6 +113,9 @@ public final class GenerationEvent
 		this.targetGenerationStep = targetGenerationStep;
 		this.threadedParam = ThreadedParameters.getOrMake(generationGroup.params);
 		this.resultConsumer = resultConsumer;
+		this.executor = executor;
+		this.isSalvageRetry = isSalvageRetry;
+		this.isBulkImport = isBulkImport;
 	}
 	
 	
@@ -74,6 +124,22 @@ public final class GenerationEvent
 			DhChunkPos minPos, int size, BatchGenerationEnvironment genEnvironment,
 			EDhApiWorldGenerationStep target, Consumer<IChunkWrapper> resultConsumer,
 			ExecutorService worldGeneratorThreadPool)
+	{
+		return startEvent(minPos, size, genEnvironment, target, resultConsumer, worldGeneratorThreadPool, false);
+	}
+	
+	public static GenerationEvent startEvent(
+			DhChunkPos minPos, int size, BatchGenerationEnvironment genEnvironment,
+			EDhApiWorldGenerationStep target, Consumer<IChunkWrapper> resultConsumer,
+			Executor executor, boolean isSalvageRetry)
+	{
+		return startEvent(minPos, size, genEnvironment, target, resultConsumer, executor, isSalvageRetry, false);
+	}
+	
+	public static GenerationEvent startEvent(
+			DhChunkPos minPos, int size, BatchGenerationEnvironment genEnvironment,
+			EDhApiWorldGenerationStep target, Consumer<IChunkWrapper> resultConsumer,
+			Executor executor, boolean isSalvageRetry, boolean isBulkImport)
 	{
 		if (size % 2 == 0)
 		{
@@ -81,28 +147,9 @@ public final class GenerationEvent
 		}
 		
 		
-		GenerationEvent generationEvent = new GenerationEvent(minPos, size, genEnvironment, target, resultConsumer);
-		generationEvent.future = CompletableFuture.runAsync(() ->
-		{
-			long runStartTime = System.nanoTime();
-			generationEvent.timeoutTime = runStartTime;
-			generationEvent.inQueueTime = runStartTime - generationEvent.inQueueTime;
-			generationEvent.timer = new EventTimer("setup");
-			
-			BatchGenerationEnvironment.isDistantGeneratorThread.set(true);
-			try
-			{
-				//LOGGER.info("generating [{}]", event.minPos);
-				genEnvironment.generateLodFromList(generationEvent);
-			}
-			catch (InterruptedException ignored)
-			{
-			}
-			finally
-			{
-				BatchGenerationEnvironment.isDistantGeneratorThread.remove();
-			}
-		}, worldGeneratorThreadPool);
+		GenerationEvent generationEvent = new GenerationEvent(minPos, size, genEnvironment, target, resultConsumer, executor, isSalvageRetry, isBulkImport);
+		generationEvent.future = new CompletableFuture<>();
+		genEnvironment.queueEvent(generationEvent);
 		return generationEvent;
 	}
 	
@@ -125,9 +172,59 @@ public final class GenerationEvent
 		LOGGER.info("======================DUMPING ALL THREADS FOR WORLD GEN=======================");
 		ThreadPools.WORLD_GEN_THREAD_FACTORY.dumpAllThreadStacks();
 		this.future.cancel(true);
+		
+		// canceling a CompletableFuture doesn't interrupt anything, so the stage has to be interrupted directly
+		synchronized (this)
+		{
+			if (this.runningThread != null)
+			{
+				this.runningThread.interrupt();
+			}
+		}
 		return this.future.isCancelled();
 	}
 	
+	/** 
+	 * Should be set to the current thread when a stage starts and null once it exits. <br>
+	 * Once this has been set to null {@link GenerationEvent#terminate()} won't interrupt the previous thread.
+	 */
+	public synchronized void setRunningThread(Thread thread) { this.runningThread = thread; }
+	
+	/** 
+	 * Should be called once this event is done and none of its stages are running. <br>
+	 * @return true the first time this is called, so the event's pipeline slot is only released once
+	 */
+	public boolean tryMarkLeftPipeline() { return this.leftPipeline.compareAndSet(false, true); }
+	
+	/** Should be called after each stage successfully finishes. */
+	public void recordCompletedStatuses()
+	{
+		ArrayGridList<ChunkWrapper> chunkWrappers = this.chunkWrapperList;
+		if (chunkWrappers == null)
+		{
+			return;
+		}
+		
+		ChunkStatus[] statuses = new ChunkStatus[chunkWrappers.size()];
+		for (int i = 0; i < chunkWrappers.size(); i++)
+		{
+			statuses[i] = chunkWrappers.get(i).getChunk().getStatus();
+		}
+		this.completedStatuses = statuses;
+	}
+	
+	/** 
+	 * Drops the references to this event's chunks once it has finished,
+	 * since the event itself may be referenced until its timeout check runs. 
+	 */
+	public void releaseGenerationData()
+	{
+		this.region = null;
+		this.structFeat = null;
+		this.chunkWrapperList = null;
+		this.completedStatuses = null;
+	}
+	
 	public boolean tooClose(int minX, int minZ, int width)
 	{
 		int aMinX = this.minPos.x;
@@ -0,0 +1,235 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.core.config.Config;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.phys.Vec3;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines the order {@link GenerationEvent}s are run in based on how close they are to the players,
+ * and which events are far enough away that they should be canceled. <br><br>
+ *
+ * The player positions are snapshotted periodically since the level's player list
+ * can only be safely read from the server thread,
+ * generator threads only read the last published snapshot.
+ */
+public class GenerationEventPrioritizer
+{
+	/** how often the player positions should be re-read */
+	public static final long SNAPSHOT_REFRESH_INTERVAL_IN_NS = TimeUnit.NANOSECONDS.convert(500, TimeUnit.MILLISECONDS);
+	/** events behind every player are treated as if they were this many times further away */
+	public static final double BEHIND_PLAYER_DISTANCE_MULTIPLIER = 2.0;
+	/** 
+	 * Added to every {@link BulkChunkImporter} event's priority so they only run when no requested event is waiting. <br>
+	 * Larger than any distance in chunks a Minecraft world can have, even behind a player.
+	 */
+	public static final double BULK_IMPORT_PRIORITY_OFFSET = 1.0E9;
+	
+	/**
+	 * Events further than the LOD render distance times this from every player will be canceled,
+	 * IE after a player teleports or flies away quickly. <br>
+	 * The render distance is a radius but LODs are rendered in a square,
+	 * so this needs to be larger than sqrt(2) to keep the corners.
+	 */
+	public static final double CANCEL_DISTANCE_RENDER_DISTANCE_MULTIPLIER = 1.5;
+	
+	private volatile PlayerSnapshot[] playerSnapshots = new PlayerSnapshot[0];
+	private volatile long lastSnapshotTimeNs = 0;
+	/** incremented every time a new snapshot is published, used to know when queued priorities are stale */
+	private volatile long snapshotVersion = 0;
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/**
+	 * Re-reads the player positions if the last snapshot is old enough. <br>
+	 * Should only be called from the server thread.
+	 */
+	public void tryUpdateSnapshot(ServerLevel level)
+	{
+		long currentTimeNs = System.nanoTime();
+		if (currentTimeNs - this.lastSnapshotTimeNs < SNAPSHOT_REFRESH_INTERVAL_IN_NS)
+		{
+			return;
+		}
+		this.lastSnapshotTimeNs = currentTimeNs;
+		
+		ArrayList<ServerPlayer> players;
+		try
+		{
+			players = new ArrayList<>(level.players());
+		}
+		catch (ConcurrentModificationException | IndexOutOfBoundsException e)
+		{
+			// a player joined or left while copying, keep the previous snapshot
+			return;
+		}
+		
+		PlayerSnapshot[] snapshots = new PlayerSnapshot[players.size()];
+		for (int i = 0; i < players.size(); i++)
+		{
+			ServerPlayer player = players.get(i);
+			Vec3 lookAngle = player.getLookAngle();
+			snapshots[i] = new PlayerSnapshot(player.getX() / 16.0, player.getZ() / 16.0, lookAngle.x, lookAngle.z);
+		}
+		this.playerSnapshots = snapshots;
+		this.snapshotVersion++;
+	}
+	
+	/** @see GenerationPriorityQueue */
+	public long getSnapshotVersion() { return this.snapshotVersion; }
+	
+	/**
+	 * Lower values should be generated first. <br>
+	 * If no players are present every requested event has the same priority.
+	 * Bulk import events always come after requested events.
+	 */
+	public double getPriority(GenerationEvent genEvent)
+	{
+		double distance = this.getPlayerDistancePriority(genEvent);
+		return genEvent.isBulkImport ? BULK_IMPORT_PRIORITY_OFFSET + distance : distance;
+	}
+	
+	private double getPlayerDistancePriority(GenerationEvent genEvent)
+	{
+		PlayerSnapshot[] snapshots = this.playerSnapshots;
+		if (snapshots.length == 0)
+		{
+			return 0;
+		}
+		
+		double eventCenterX = genEvent.minPos.x + (genEvent.size / 2.0);
+		double eventCenterZ = genEvent.minPos.z + (genEvent.size / 2.0);
+		
+		double minDistance = Double.MAX_VALUE;
+		for (PlayerSnapshot snapshot : snapshots)
+		{
+			double deltaX = eventCenterX - snapshot.chunkX;
+			double deltaZ = eventCenterZ - snapshot.chunkZ;
+			double distance = Math.sqrt(deltaX * deltaX + deltaZ * deltaZ);
+			
+			// the area in front of the player is more likely to be seen
+			boolean isBehindPlayer = (deltaX * snapshot.lookX + deltaZ * snapshot.lookZ) < 0;
+			if (isBehindPlayer)
+			{
+				distance *= BEHIND_PLAYER_DISTANCE_MULTIPLIER;
+			}
+			
+			minDistance = Math.min(minDistance, distance);
+		}
+		return minDistance;
+	}
+	
+	/** @return the distance in chunks from the given chunk position to the closest player, or -1 if no players are present */
+	public double getDistanceToNearestPlayer(double chunkX, double chunkZ)
+	{
+		PlayerSnapshot[] snapshots = this.playerSnapshots;
+		if (snapshots.length == 0)
+		{
+			return -1;
+		}
+		
+		double minDistanceSquared = Double.MAX_VALUE;
+		for (PlayerSnapshot snapshot : snapshots)
+		{
+			double deltaX = chunkX - snapshot.chunkX;
+			double deltaZ = chunkZ - snapshot.chunkZ;
+			minDistanceSquared = Math.min(minDistanceSquared, deltaX * deltaX + deltaZ * deltaZ);
+		}
+		return Math.sqrt(minDistanceSquared);
+	}
+	
+	/** @return the chunk each player was in when the last snapshot was taken, empty if no players are present */
+	public ArrayList<ChunkPos> getPlayerChunkPositions()
+	{
+		PlayerSnapshot[] snapshots = this.playerSnapshots;
+		ArrayList<ChunkPos> chunkPositions = new ArrayList<>(snapshots.length);
+		for (PlayerSnapshot snapshot : snapshots)
+		{
+			chunkPositions.add(new ChunkPos((int) Math.floor(snapshot.chunkX), (int) Math.floor(snapshot.chunkZ)));
+		}
+		return chunkPositions;
+	}
+	
+	/** @return true if the event is far enough away from every player that it should be canceled */
+	public boolean isOutOfRange(GenerationEvent genEvent)
+	{
+		PlayerSnapshot[] snapshots = this.playerSnapshots;
+		if (snapshots.length == 0)
+		{
+			// if no players are present the world is probably being pre-generated
+			return false;
+		}
+		else if (genEvent.isBulkImport)
+		{
+			// bulk imports cover the whole world regardless of where the players are
+			return false;
+		}
+		
+		double eventCenterX = genEvent.minPos.x + (genEvent.size / 2.0);
+		double eventCenterZ = genEvent.minPos.z + (genEvent.size / 2.0);
+		double cancelDistanceInChunks = Config.Client.Advanced.Graphics.Quality.lodChunkRenderDistanceRadius.get() * CANCEL_DISTANCE_RENDER_DISTANCE_MULTIPLIER;
+		double maxDistanceSquared = cancelDistanceInChunks * cancelDistanceInChunks;
+		for (PlayerSnapshot snapshot : snapshots)
+		{
+			double deltaX = eventCenterX - snapshot.chunkX;
+			double deltaZ = eventCenterZ - snapshot.chunkZ;
+			if (deltaX * deltaX + deltaZ * deltaZ <= maxDistanceSquared)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static class PlayerSnapshot
+	{
+		public final double chunkX;
+		public final double chunkZ;
+		public final double lookX;
+		public final double lookZ;
+		
+		public PlayerSnapshot(double chunkX, double chunkZ, double lookX, double lookZ)
+		{
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+			this.lookX = lookX;
+			this.lookZ = lookZ;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,158 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A min-heap of items whose priority changes whenever the {@link GenerationEventPrioritizer}
+ * takes a new player snapshot. <br><br>
+ *
+ * Each item's priority is calculated once when it's added,
+ * and the whole heap is re-keyed the first time it's used after the snapshot version changes.
+ * This keeps polling at O(log n) instead of re-evaluating every item on each poll. <br><br>
+ *
+ * Items with the same priority are returned in the order they were added. <br>
+ * Not thread safe, callers should synchronize on the queue.
+ *
+ * @param <T> the queued item type
+ */
+public class GenerationPriorityQueue<T>
+{
+	/** lower values are returned first */
+	private final ToDoubleFunction<T> priorityFunc;
+	/** the priorities are re-calculated whenever this value changes */
+	private final LongSupplier priorityVersionSupplier;
+	/**
+	 * Items this returns true for are dropped from the queue when it's re-keyed or when they're polled,
+	 * IE events that were canceled while waiting. <br>
+	 * Null if items should never be dropped.
+	 */
+	@Nullable
+	private final Predicate<T> dropFilter;
+	
+	private PriorityQueue<Entry<T>> heap = new PriorityQueue<>();
+	private long keyedPriorityVersion;
+	private long nextSequenceNumber = 0;
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	public GenerationPriorityQueue(ToDoubleFunction<T> priorityFunc, LongSupplier priorityVersionSupplier, @Nullable Predicate<T> dropFilter)
+	{
+		this.priorityFunc = priorityFunc;
+		this.priorityVersionSupplier = priorityVersionSupplier;
+		this.dropFilter = dropFilter;
+		this.keyedPriorityVersion = priorityVersionSupplier.getAsLong();
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	public void add(T item)
+	{
+		this.rekeyIfStale();
+		this.heap.add(new Entry<>(item, this.priorityFunc.applyAsDouble(item), this.nextSequenceNumber++));
+	}
+	
+	/** @return null if the queue is empty */
+	@Nullable
+	public T poll()
+	{
+		this.rekeyIfStale();
+		
+		Entry<T> entry;
+		while ((entry = this.heap.poll()) != null)
+		{
+			if (this.dropFilter == null || !this.dropFilter.test(entry.item))
+			{
+				return entry.item;
+			}
+		}
+		return null;
+	}
+	
+	/** Re-calculates every item's priority if the priority version has changed since the last re-key. */
+	public void rekeyIfStale()
+	{
+		long priorityVersion = this.priorityVersionSupplier.getAsLong();
+		if (priorityVersion == this.keyedPriorityVersion)
+		{
+			return;
+		}
+		this.keyedPriorityVersion = priorityVersion;
+		
+		ArrayList<Entry<T>> rekeyedEntries = new ArrayList<>(this.heap.size());
+		for (Entry<T> entry : this.heap)
+		{
+			if (this.dropFilter == null || !this.dropFilter.test(entry.item))
+			{
+				rekeyedEntries.add(new Entry<>(entry.item, this.priorityFunc.applyAsDouble(entry.item), entry.sequenceNumber));
+			}
+		}
+		
+		// creating the queue from a collection heapifies in linear time
+		this.heap = new PriorityQueue<>(rekeyedEntries);
+	}
+	
+	public int size() { return this.heap.size(); }
+	public boolean isEmpty() { return this.heap.isEmpty(); }
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static class Entry<T> implements Comparable<Entry<T>>
+	{
+		public final T item;
+		public final double priority;
+		public final long sequenceNumber;
+		
+		public Entry(T item, double priority, long sequenceNumber)
+		{
+			this.item = item;
+			this.priority = priority;
+			this.sequenceNumber = sequenceNumber;
+		}
+		
+		@Override
+		public int compareTo(Entry<T> other)
+		{
+			int priorityComparison = Double.compare(this.priority, other.priority);
+			return (priorityComparison != 0) ? priorityComparison : Long.compare(this.sequenceNumber, other.sequenceNumber);
+		}
+		
+	}
+	
+}
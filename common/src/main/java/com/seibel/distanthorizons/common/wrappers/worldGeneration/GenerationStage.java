@@ -0,0 +1,190 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.api.enums.worldGeneration.EDhApiWorldGenerationStep;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * A single stage in the {@link BatchGenerationEnvironment}'s generation pipeline. <br><br>
+ *
+ * Each stage has its own task queue and a maximum number of tasks
+ * that can run at the same time (its worker budget).
+ * This allows multiple {@link GenerationEvent}s to be in different stages at the same time
+ * (IE noise for one event can run while features are running for another)
+ * without a single slow stage being able to occupy every world generator thread. <br><br>
+ *
+ * Stages don't own any threads themselves, queued tasks are handed to
+ * the world generator thread pool once the stage has room for them.
+ * Queued tasks are started in priority order,
+ * the priorities are re-evaluated whenever the player snapshot changes so they can change while queued.
+ */
+public final class GenerationStage
+{
+	/** also used as the {@link com.seibel.distanthorizons.core.util.objects.EventTimer} event name */
+	public final String name;
+	/** null if this stage doesn't correspond to a world generation step (IE setup or lighting) */
+	@Nullable
+	public final EDhApiWorldGenerationStep step;
+	/** re-read on every dispatch so the budget follows changes to the world generator's thread count */
+	private final IntSupplier maxConcurrentTasksSupplier;
+	public final IStageRunner runner;
+	
+	private final AtomicInteger runningTaskCount = new AtomicInteger(0);
+	/** synchronized on itself */
+	private final GenerationPriorityQueue<QueuedTask> queuedTasks;
+	
+	
+	
+	//=============//
+	// constructor //
+	//=============//
+	
+	/** @param priorityVersionSupplier queued task priorities are re-evaluated whenever this value changes */
+	public GenerationStage(String name, @Nullable EDhApiWorldGenerationStep step, IntSupplier maxConcurrentTasksSupplier, LongSupplier priorityVersionSupplier, IStageRunner runner)
+	{
+		this.name = name;
+		this.step = step;
+		this.maxConcurrentTasksSupplier = maxConcurrentTasksSupplier;
+		this.runner = runner;
+		this.queuedTasks = new GenerationPriorityQueue<>((queuedTask) -> queuedTask.priority.getAsDouble(), priorityVersionSupplier, null);
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/**
+	 * Queues the given task, it will be run on the given executor
+	 * once this stage has fewer than {@link GenerationStage#getMaxConcurrentTasks()} tasks running.
+	 *
+	 * @param priority lower values are run first
+	 * @param onRejected called if the executor refuses the task (generally because it was shut down)
+	 */
+	public void submit(Runnable task, DoubleSupplier priority, Executor executor, IRejectionHandler onRejected)
+	{
+		synchronized (this.queuedTasks)
+		{
+			this.queuedTasks.add(new QueuedTask(task, priority, executor, onRejected));
+		}
+		this.tryDispatch();
+	}
+	
+	public int getQueuedTaskCount() { synchronized (this.queuedTasks) { return this.queuedTasks.size(); } }
+	public int getRunningTaskCount() { return this.runningTaskCount.get(); }
+	public int getMaxConcurrentTasks() { return Math.max(1, this.maxConcurrentTasksSupplier.getAsInt()); }
+	
+	/** @return null if no tasks are queued */
+	private QueuedTask pollHighestPriorityTask() { synchronized (this.queuedTasks) { return this.queuedTasks.poll(); } }
+	
+	private void tryDispatch()
+	{
+		while (this.getQueuedTaskCount() != 0)
+		{
+			// reserve a worker slot before removing a task from the queue
+			int runningCount = this.runningTaskCount.get();
+			if (runningCount >= this.getMaxConcurrentTasks())
+			{
+				return;
+			}
+			if (!this.runningTaskCount.compareAndSet(runningCount, runningCount + 1))
+			{
+				continue;
+			}
+			
+			QueuedTask queuedTask = this.pollHighestPriorityTask();
+			if (queuedTask == null)
+			{
+				// another thread took the last task, release the slot and re-check the queue
+				this.runningTaskCount.decrementAndGet();
+				continue;
+			}
+			
+			try
+			{
+				queuedTask.executor.execute(() ->
+				{
+					try
+					{
+						queuedTask.task.run();
+					}
+					finally
+					{
+						this.runningTaskCount.decrementAndGet();
+						this.tryDispatch();
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				this.runningTaskCount.decrementAndGet();
+				queuedTask.onRejected.onRejected(e);
+			}
+		}
+	}
+	
+	@Override
+	public String toString() { return this.name + " [" + this.runningTaskCount.get() + "/" + this.getMaxConcurrentTasks() + "] queued: " + this.getQueuedTaskCount(); }
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	@FunctionalInterface
+	public interface IStageRunner
+	{
+		void run(GenerationEvent genEvent) throws InterruptedException;
+	}
+	
+	@FunctionalInterface
+	public interface IRejectionHandler
+	{
+		void onRejected(RejectedExecutionException e);
+	}
+	
+	private static class QueuedTask
+	{
+		public final Runnable task;
+		public final DoubleSupplier priority;
+		public final Executor executor;
+		public final IRejectionHandler onRejected;
+		
+		public QueuedTask(Runnable task, DoubleSupplier priority, Executor executor, IRejectionHandler onRejected)
+		{
+			this.task = task;
+			this.priority = priority;
+			this.executor = executor;
+			this.onRejected = onRejected;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,145 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel used to find {@link GenerationEvent}s that may have timed out. <br><br>
+ *
+ * Each event is put into the bucket for the tick its deadline falls on,
+ * so advancing the wheel only looks at the buckets that have passed
+ * instead of every event that is in progress. <br>
+ * Deadlines further away than a full rotation stay in their bucket
+ * until the wheel comes back around to them. <br><br>
+ *
+ * Since an event's timeout is refreshed while it runs, expired events
+ * are only candidates and should be re-checked (and re-scheduled if needed) by the caller.
+ */
+public class GenerationTimeoutWheel
+{
+	public static final long TICK_DURATION_NS = TimeUnit.NANOSECONDS.convert(250, TimeUnit.MILLISECONDS);
+	/** must be a power of two */
+	public static final int WHEEL_SIZE = 256;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	
+	private final long startTimeNs = System.nanoTime();
+	private final ArrayList<ScheduledEvent>[] buckets;
+	/** the last tick that was processed */
+	private long currentTick = 0;
+	private int scheduledCount = 0;
+	
+	
+	
+	@SuppressWarnings("unchecked")
+	public GenerationTimeoutWheel()
+	{
+		this.buckets = new ArrayList[WHEEL_SIZE];
+		for (int i = 0; i < WHEEL_SIZE; i++)
+		{
+			this.buckets[i] = new ArrayList<>();
+		}
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	public synchronized void schedule(GenerationEvent genEvent, long deadlineNs)
+	{
+		// deadlines that have already passed will be checked the next time the wheel advances
+		long deadlineTick = Math.max(this.getTick(deadlineNs), this.currentTick + 1);
+		this.buckets[(int) (deadlineTick & WHEEL_MASK)].add(new ScheduledEvent(genEvent, deadlineTick));
+		this.scheduledCount++;
+	}
+	
+	/**
+	 * Removes every event whose deadline is before the given time.
+	 *
+	 * @param expiredEvents the removed events will be added to this list
+	 */
+	public synchronized void advance(long currentTimeNs, ArrayList<GenerationEvent> expiredEvents)
+	{
+		long targetTick = this.getTick(currentTimeNs);
+		if (targetTick <= this.currentTick)
+		{
+			return;
+		}
+		
+		// if more than a full rotation has passed every bucket only needs to be checked once
+		long lastTickToProcess = Math.min(targetTick, this.currentTick + WHEEL_SIZE);
+		for (long tick = this.currentTick + 1; tick <= lastTickToProcess; tick++)
+		{
+			ArrayList<ScheduledEvent> bucket = this.buckets[(int) (tick & WHEEL_MASK)];
+			for (int i = bucket.size() - 1; i >= 0; i--)
+			{
+				ScheduledEvent scheduledEvent = bucket.get(i);
+				if (scheduledEvent.deadlineTick <= targetTick)
+				{
+					expiredEvents.add(scheduledEvent.genEvent);
+					
+					// swap remove, the order inside a bucket doesn't matter
+					int lastIndex = bucket.size() - 1;
+					bucket.set(i, bucket.get(lastIndex));
+					bucket.remove(lastIndex);
+					this.scheduledCount--;
+				}
+			}
+		}
+		
+		this.currentTick = targetTick;
+	}
+	
+	public synchronized void clear()
+	{
+		for (ArrayList<ScheduledEvent> bucket : this.buckets)
+		{
+			bucket.clear();
+		}
+		this.scheduledCount = 0;
+	}
+	
+	public synchronized int getScheduledCount() { return this.scheduledCount; }
+	
+	private long getTick(long timeNs) { return (timeNs - this.startTimeNs) / TICK_DURATION_NS; }
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static class ScheduledEvent
+	{
+		public final GenerationEvent genEvent;
+		public final long deadlineTick;
+		
+		public ScheduledEvent(GenerationEvent genEvent, long deadlineTick)
+		{
+			this.genEvent = genEvent;
+			this.deadlineTick = deadlineTick;
+		}
+		
+	}
+	
+}
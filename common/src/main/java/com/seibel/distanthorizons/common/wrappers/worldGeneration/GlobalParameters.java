@@ -70,6 +70,11 @@ public final class GlobalParameters
 	#if MC_VER >= MC_1_18_2
 	public final BiomeManager biomeManager;
 	public final ChunkScanAccess chunkScanner; // FIXME: Figure out if this is actually needed
+	/** 
+	 * Shared by every world generator thread for this level. <br>
+	 * Created here instead of on each thread's first event so that event doesn't have to wait on it.
+	 */
+	public final SharedStructureCheck structCheck;
 	#endif
 	
 	public GlobalParameters(IDhServerLevel lodLevel)
@@ -100,6 +105,9 @@ public final class GlobalParameters
 		#if MC_VER >= MC_1_19_2
 		randomState = level.getChunkSource().randomState();
 		#endif
+		#if MC_VER >= MC_1_18_2
+		structCheck = new SharedStructureCheck(this);
+		#endif
 	}
 	
 }
\ No newline at end of file
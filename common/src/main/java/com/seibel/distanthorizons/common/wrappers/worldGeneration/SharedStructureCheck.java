@@ -0,0 +1,202 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+#if MC_VER >= MC_1_18_2
+import net.minecraft.world.level.ChunkPos;
+#if MC_VER < MC_1_19_2
+import net.minecraft.world.level.levelgen.feature.ConfiguredStructureFeature;
+#else
+import net.minecraft.world.level.levelgen.structure.Structure;
+#endif
+import net.minecraft.world.level.levelgen.structure.StructureCheck;
+import net.minecraft.world.level.levelgen.structure.StructureCheckResult;
+import net.minecraft.world.level.levelgen.structure.StructureStart;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+import java.util.Map;
+
+/**
+ * A {@link StructureCheck} shared by every world generator thread for a level,
+ * so structure presence only has to be determined once per chunk instead of once per thread. <br><br>
+ *
+ * Vanilla's structure check caches aren't thread safe,
+ * and a cache miss reads the chunk from disk and samples biomes while using them,
+ * so a single lock would serialize every thread on that work. <br>
+ * Instead the checks are striped by chunk position: each stripe is its own vanilla {@link StructureCheck}
+ * with its own lock, and a chunk is always checked by the same stripe so its results stay cached.
+ * Threads only wait on each other when they check chunks in the same stripe. <br><br>
+ *
+ * DH visits far more chunks than vanilla generally does, so each stripe's caches are cleared
+ * once they hold more than their share of {@link SharedStructureCheck#MAX_CACHED_CHUNKS} chunks. <br><br>
+ *
+ * The check is created once per level along with the {@link GlobalParameters},
+ * so the stripes exist before the first event runs. Their caches aren't warmed up ahead of time,
+ * since what's worth caching depends on which chunks are requested,
+ * and checking chunks nobody asked for would compete with the first requests for disk reads and biome sampling.
+ */
+public class SharedStructureCheck extends StructureCheck
+{
+	public static final int MAX_CACHED_CHUNKS = 100_000;
+	/** must be a power of two */
+	public static final int STRIPE_COUNT = 32;
+	
+	/** each stripe is synchronized on itself, this instance's own caches are never used */
+	private final StructureCheck[] stripes = new StructureCheck[STRIPE_COUNT];
+	
+	
+	
+	public SharedStructureCheck(GlobalParameters param)
+	{
+		#if MC_VER < MC_1_19_2
+		super(param.chunkScanner, param.registry, param.structures,
+				param.level.dimension(), param.generator, param.level, param.generator.getBiomeSource(), param.worldSeed,
+				param.fixerUpper);
+		#else
+		super(param.chunkScanner, param.registry, param.structures,
+				param.level.dimension(), param.generator, param.randomState, param.level, param.generator.getBiomeSource(), param.worldSeed,
+				param.fixerUpper);
+		#endif
+		
+		for (int i = 0; i < STRIPE_COUNT; i++)
+		{
+			this.stripes[i] = createStructureCheck(param);
+		}
+	}
+	
+	private static StructureCheck createStructureCheck(GlobalParameters param)
+	{
+		#if MC_VER < MC_1_19_2
+		return new StructureCheck(param.chunkScanner, param.registry, param.structures,
+				param.level.dimension(), param.generator, param.level, param.generator.getBiomeSource(), param.worldSeed,
+				param.fixerUpper);
+		#else
+		return new StructureCheck(param.chunkScanner, param.registry, param.structures,
+				param.level.dimension(), param.generator, param.randomState, param.level, param.generator.getBiomeSource(), param.worldSeed,
+				param.fixerUpper);
+		#endif
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	#if MC_VER < MC_1_19_2
+	@Override
+	public StructureCheckResult checkStart(ChunkPos chunkPos, ConfiguredStructureFeature<?, ?> structure, boolean skipKnownStructures)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			trimCaches(stripe);
+			return stripe.checkStart(chunkPos, structure, skipKnownStructures);
+		}
+	}
+	
+	@Override
+	public void onStructureLoad(ChunkPos chunkPos, Map<ConfiguredStructureFeature<?, ?>, StructureStart> structureStarts)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			trimCaches(stripe);
+			stripe.onStructureLoad(chunkPos, structureStarts);
+		}
+	}
+	
+	@Override
+	public void incrementReference(ChunkPos chunkPos, ConfiguredStructureFeature<?, ?> structure)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			stripe.incrementReference(chunkPos, structure);
+		}
+	}
+	#else
+	@Override
+	public StructureCheckResult checkStart(ChunkPos chunkPos, Structure structure, boolean skipKnownStructures)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			trimCaches(stripe);
+			return stripe.checkStart(chunkPos, structure, skipKnownStructures);
+		}
+	}
+	
+	@Override
+	public void onStructureLoad(ChunkPos chunkPos, Map<Structure, StructureStart> structureStarts)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			trimCaches(stripe);
+			stripe.onStructureLoad(chunkPos, structureStarts);
+		}
+	}
+	
+	@Override
+	public void incrementReference(ChunkPos chunkPos, Structure structure)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			stripe.incrementReference(chunkPos, structure);
+		}
+	}
+	#endif
+	
+	/** 
+	 * Clears the cached structure checks in the given chunk's stripe, can be used if the caches become corrupted. <br>
+	 * The other stripes are left alone since they can't contain the corrupted entries.
+	 */
+	public void clearCaches(ChunkPos chunkPos)
+	{
+		StructureCheck stripe = this.getStripe(chunkPos);
+		synchronized (stripe)
+		{
+			clearCaches(stripe);
+		}
+	}
+	
+	private StructureCheck getStripe(ChunkPos chunkPos) { return this.stripes[HashCommon.mix(Long.hashCode(chunkPos.toLong())) & (STRIPE_COUNT - 1)]; }
+	
+	/** the stripe's lock must be held */
+	private static void trimCaches(StructureCheck stripe)
+	{
+		if (stripe.loadedChunks.size() > MAX_CACHED_CHUNKS / STRIPE_COUNT)
+		{
+			clearCaches(stripe);
+		}
+	}
+	
+	/** the stripe's lock must be held */
+	private static void clearCaches(StructureCheck stripe)
+	{
+		stripe.loadedChunks.clear();
+		stripe.featureChecks.clear();
+	}
+	
+}
+#endif
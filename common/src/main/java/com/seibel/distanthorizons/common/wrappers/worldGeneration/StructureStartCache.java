@@ -0,0 +1,600 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration;
+
+import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.ChunkAccess;
+#if MC_VER >= MC_1_18_2
+import net.minecraft.nbt.NbtOps;
+import net.minecraft.resources.RegistryOps;
+import net.minecraft.world.level.chunk.ChunkGenerator;
+import net.minecraft.world.level.chunk.storage.ChunkSerializer;
+import net.minecraft.world.level.levelgen.structure.pieces.StructurePieceSerializationContext;
+#endif
+#if MC_VER >= MC_1_19_4
+import net.minecraft.core.registries.Registries;
+#elif MC_VER >= MC_1_18_2
+import net.minecraft.core.Registry;
+#endif
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the structure starts and references DH generates on disk,
+ * so chunks that are generated again (IE border chunks of neighboring events or after a restart)
+ * don't have to ask the chunk generator to place their structures again. <br><br>
+ *
+ * Chunks are grouped into 32x32 regions, each region is one compressed NBT file.
+ * The cache folder is keyed by the world seed, the generator's serialized settings, the Minecraft version and the loaded structures
+ * so changing any of them starts a new cache. Caches for other keys are deleted
+ * and the cache folder is trimmed to {@link StructureStartCache#MAX_CACHE_SIZE_IN_BYTES}. <br><br>
+ *
+ * Only supported on MC 1.18.2 and newer, older versions serialize structures too differently to be worth supporting.
+ */
+public class StructureStartCache
+{
+	private static final ConfigBasedLogger LOGGER = BatchGenerationEnvironment.EVENT_LOGGER;
+	
+	public static final int MAX_LOADED_REGIONS = 64;
+	/** once the cache folder is larger than this the least recently written regions are deleted */
+	public static final long MAX_CACHE_SIZE_IN_BYTES = 256L * 1024L * 1024L;
+	/** how many region saves happen between checking the cache folder's size */
+	private static final int SAVES_PER_SIZE_CHECK = 64;
+	private static final int REGION_WIDTH_IN_CHUNKS = 32;
+	
+	private static final String HAS_REFERENCES_TAG = "dhHasReferences";
+	
+	private final GlobalParameters params;
+	private final File cacheFolder;
+	#if MC_VER >= MC_1_18_2
+	private final StructurePieceSerializationContext serializationContext;
+	#endif
+	
+	/** ordered from least to most recently used, synchronized on itself */
+	private final Long2ObjectLinkedOpenHashMap<CacheRegion> regionByPos = new Long2ObjectLinkedOpenHashMap<>();
+	/** 
+	 * Regions that have been evicted but may not have finished saving, synchronized on {@link StructureStartCache#regionByPos}. <br>
+	 * A region loaded at the same position waits for these to finish saving before reading the file.
+	 */
+	private final Long2ObjectOpenHashMap<CacheRegion> closingRegionByPos = new Long2ObjectOpenHashMap<>();
+	private final AtomicInteger saveCountSinceSizeCheck = new AtomicInteger(0);
+	
+	
+	
+	public StructureStartCache(GlobalParameters params, File levelSaveFolder)
+	{
+		this.params = params;
+		File cacheRootFolder = new File(levelSaveFolder, "DistantHorizons" + File.separator + "structureStarts");
+		this.cacheFolder = new File(cacheRootFolder, getCacheKey(params));
+		#if MC_VER >= MC_1_18_2
+		this.serializationContext = StructurePieceSerializationContext.fromLevel(params.level);
+		#endif
+		
+		deleteOtherCaches(cacheRootFolder, this.cacheFolder);
+	}
+	
+	/** Used for the cache folder name, so any change to how structures would be generated uses a new cache. */
+	private static String getCacheKey(GlobalParameters params)
+	{
+		StringBuilder key = new StringBuilder();
+		key.append(params.worldSeed);
+		key.append(SharedConstants.getCurrentVersion().getName());
+		key.append(params.generator.getClass().getName());
+		key.append(params.generator.getBiomeSource().getClass().getName());
+		
+		#if MC_VER >= MC_1_18_2
+		// the generator's settings (IE noise settings or a flat world's layers and structure overrides)
+		try
+		{
+			ChunkGenerator.CODEC.encodeStart(RegistryOps.create(NbtOps.INSTANCE, params.registry), params.generator)
+					.result().ifPresent((generatorTag) -> key.append(generatorTag));
+		}
+		catch (Exception e)
+		{
+			// some modded generators can't be serialized, the class names will have to do
+			LOGGER.warn("Unable to serialize the chunk generator for the structure cache key, error: " + e.getMessage());
+		}
+		
+		// added or removed structures (IE from mods or datapacks) change where structures are placed
+		ArrayList<String> structureIds = new ArrayList<>();
+		#if MC_VER < MC_1_19_2
+		params.registry.registryOrThrow(Registry.CONFIGURED_STRUCTURE_FEATURE_REGISTRY).keySet().forEach((id) -> structureIds.add(id.toString()));
+		params.registry.registryOrThrow(Registry.STRUCTURE_SET_REGISTRY).keySet().forEach((id) -> structureIds.add(id.toString()));
+		#elif MC_VER < MC_1_19_4
+		params.registry.registryOrThrow(Registry.STRUCTURE_REGISTRY).keySet().forEach((id) -> structureIds.add(id.toString()));
+		params.registry.registryOrThrow(Registry.STRUCTURE_SET_REGISTRY).keySet().forEach((id) -> structureIds.add(id.toString()));
+		#else
+		params.registry.registryOrThrow(Registries.STRUCTURE).keySet().forEach((id) -> structureIds.add(id.toString()));
+		params.registry.registryOrThrow(Registries.STRUCTURE_SET).keySet().forEach((id) -> structureIds.add(id.toString()));
+		#endif
+		structureIds.sort(String::compareTo);
+		key.append(structureIds);
+		#endif
+		
+		return UUID.nameUUIDFromBytes(key.toString().getBytes(StandardCharsets.UTF_8)).toString();
+	}
+	
+	/** 
+	 * Each level only has one generator, so caches with any other key can never be used again. <br>
+	 * Any failures are ignored, they'll be tried again the next time the level is loaded.
+	 */
+	private static void deleteOtherCaches(File cacheRootFolder, File currentCacheFolder)
+	{
+		File[] cacheFolders = cacheRootFolder.listFiles(File::isDirectory);
+		if (cacheFolders == null)
+		{
+			return;
+		}
+		
+		for (File cacheFolder : cacheFolders)
+		{
+			if (cacheFolder.equals(currentCacheFolder))
+			{
+				continue;
+			}
+			
+			LOGGER.info("Deleting outdated structure cache [" + cacheFolder + "].");
+			File[] cacheFiles = cacheFolder.listFiles();
+			if (cacheFiles != null)
+			{
+				for (File cacheFile : cacheFiles)
+				{
+					cacheFile.delete();
+				}
+			}
+			cacheFolder.delete();
+		}
+	}
+	
+	
+	
+	//=========//
+	// methods //
+	//=========//
+	
+	/** @return true if the chunk's structure starts were loaded from the cache */
+	public boolean tryLoadStarts(ChunkAccess chunk)
+	{
+		#if MC_VER < MC_1_18_2
+		return false;
+		#else
+		CompoundTag structureTag = this.getStructureTag(chunk.getPos());
+		if (structureTag == null)
+		{
+			return false;
+		}
+		
+		try
+		{
+			chunk.setAllStarts(ChunkSerializer.unpackStructureStart(this.serializationContext, structureTag, this.params.worldSeed));
+			return true;
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("Unable to load cached structure starts for chunk [" + chunk.getPos() + "], error: " + e.getMessage());
+			return false;
+		}
+		#endif
+	}
+	
+	/** Should be called after the chunk's structure starts have been created. */
+	public void saveStarts(ChunkAccess chunk)
+	{
+		#if MC_VER >= MC_1_18_2
+		if (!DhWorldGenSettings.useStructureStartCache)
+		{
+			return;
+		}
+		
+		ChunkPos chunkPos = chunk.getPos();
+		try
+		{
+			CompoundTag structureTag = ChunkSerializer.packStructureData(this.serializationContext, chunkPos, chunk.getAllStarts(), chunk.getAllReferences());
+			structureTag.putBoolean(HAS_REFERENCES_TAG, false);
+			this.putStructureTag(chunkPos, structureTag);
+		}
+		catch (Exception e)
+		{
+			// some modded structures can't be serialized, they'll just be generated again next time
+			LOGGER.warn("Unable to cache structures for chunk [" + chunkPos + "], error: " + e.getMessage());
+		}
+		#endif
+	}
+	
+	/** @return true if the chunk's structure references were loaded from the cache */
+	public boolean tryLoadReferences(ChunkAccess chunk)
+	{
+		#if MC_VER < MC_1_18_2
+		return false;
+		#else
+		ChunkPos chunkPos = chunk.getPos();
+		CompoundTag structureTag = this.getStructureTag(chunkPos);
+		if (structureTag == null || !structureTag.getBoolean(HAS_REFERENCES_TAG))
+		{
+			return false;
+		}
+		
+		try
+		{
+			chunk.setAllReferences(ChunkSerializer.unpackStructureReferences(this.params.registry, chunkPos, structureTag));
+			return true;
+		}
+		catch (Exception e)
+		{
+			LOGGER.warn("Unable to load cached structure references for chunk [" + chunkPos + "], error: " + e.getMessage());
+			return false;
+		}
+		#endif
+	}
+	
+	/** Should be called after the chunk's structure references have been created. */
+	public void saveReferences(ChunkAccess chunk)
+	{
+		#if MC_VER >= MC_1_18_2
+		if (!DhWorldGenSettings.useStructureStartCache)
+		{
+			return;
+		}
+		
+		ChunkPos chunkPos = chunk.getPos();
+		try
+		{
+			CompoundTag structureTag = ChunkSerializer.packStructureData(this.serializationContext, chunkPos, chunk.getAllStarts(), chunk.getAllReferences());
+			structureTag.putBoolean(HAS_REFERENCES_TAG, true);
+			this.putStructureTag(chunkPos, structureTag);
+		}
+		catch (Exception e)
+		{
+			// some modded structures can't be serialized, they'll just be generated again next time
+			LOGGER.warn("Unable to cache structures for chunk [" + chunkPos + "], error: " + e.getMessage());
+		}
+		#endif
+	}
+	
+	private CompoundTag getStructureTag(ChunkPos chunkPos)
+	{
+		if (!DhWorldGenSettings.useStructureStartCache)
+		{
+			return null;
+		}
+		
+		try
+		{
+			while (true)
+			{
+				CacheRegion region = this.getRegion(chunkPos);
+				synchronized (region)
+				{
+					// the region may have been evicted after it was returned, in which case it has to be fetched again
+					if (!region.isClosed)
+					{
+						return region.get(chunkPos);
+					}
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			// a corrupt entry shouldn't stop generation, the structures will just be generated again
+			LOGGER.warn("Unable to read cached structures for chunk [" + chunkPos + "], error: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private void putStructureTag(ChunkPos chunkPos, CompoundTag structureTag)
+	{
+		while (true)
+		{
+			CacheRegion region = this.getRegion(chunkPos);
+			synchronized (region)
+			{
+				// if the region was evicted after it was returned the tag has to go in the region that replaced it,
+				// otherwise it would never be saved
+				if (!region.isClosed)
+				{
+					region.put(chunkPos, structureTag);
+					return;
+				}
+			}
+		}
+	}
+	
+	private CacheRegion getRegion(ChunkPos chunkPos)
+	{
+		int regionX = Math.floorDiv(chunkPos.x, REGION_WIDTH_IN_CHUNKS);
+		int regionZ = Math.floorDiv(chunkPos.z, REGION_WIDTH_IN_CHUNKS);
+		long regionPos = ChunkPos.asLong(regionX, regionZ);
+		
+		long evictedRegionPos = 0;
+		CacheRegion evictedRegion = null;
+		CacheRegion region;
+		synchronized (this.regionByPos)
+		{
+			region = this.regionByPos.getAndMoveToLast(regionPos);
+			if (region == null)
+			{
+				// if this region was recently evicted its file may still be being written
+				CacheRegion previousRegion = this.closingRegionByPos.get(regionPos);
+				region = new CacheRegion(getRegionFile(this.cacheFolder, regionX, regionZ), previousRegion);
+				this.regionByPos.putAndMoveToLast(regionPos, region);
+				
+				if (this.regionByPos.size() > MAX_LOADED_REGIONS)
+				{
+					evictedRegionPos = this.regionByPos.firstLongKey();
+					evictedRegion = this.regionByPos.removeFirst();
+					this.closingRegionByPos.put(evictedRegionPos, evictedRegion);
+				}
+			}
+		}
+		
+		// writing is done outside the lock so other threads don't have to wait on the disk
+		if (evictedRegion != null)
+		{
+			evictedRegion.close();
+			synchronized (this.regionByPos)
+			{
+				this.closingRegionByPos.remove(evictedRegionPos, evictedRegion);
+			}
+			
+			if (this.saveCountSinceSizeCheck.incrementAndGet() >= SAVES_PER_SIZE_CHECK)
+			{
+				this.saveCountSinceSizeCheck.set(0);
+				this.trimCacheFolder();
+			}
+		}
+		return region;
+	}
+	
+	private static File getRegionFile(File cacheFolder, int regionX, int regionZ) { return new File(cacheFolder, "r." + regionX + "." + regionZ + ".dat"); }
+	
+	/** Writes every modified region to disk. */
+	public void flush()
+	{
+		ArrayList<CacheRegion> regions;
+		synchronized (this.regionByPos)
+		{
+			regions = new ArrayList<>(this.regionByPos.values());
+		}
+		
+		for (CacheRegion region : regions)
+		{
+			region.trySave();
+		}
+		this.trimCacheFolder();
+	}
+	
+	/** 
+	 * Deletes the least recently written region files until the cache folder is back under 3/4 of {@link StructureStartCache#MAX_CACHE_SIZE_IN_BYTES}. <br>
+	 * Regions that are currently loaded (or being saved) are skipped.
+	 */
+	private void trimCacheFolder()
+	{
+		File[] regionFiles = this.cacheFolder.listFiles((file) -> file.getName().endsWith(".dat"));
+		if (regionFiles == null)
+		{
+			return;
+		}
+		
+		long totalSize = 0;
+		for (File regionFile : regionFiles)
+		{
+			totalSize += regionFile.length();
+		}
+		if (totalSize <= MAX_CACHE_SIZE_IN_BYTES)
+		{
+			return;
+		}
+		
+		
+		HashSet<File> inUseFiles = new HashSet<>();
+		synchronized (this.regionByPos)
+		{
+			this.regionByPos.values().forEach((region) -> inUseFiles.add(region.file));
+			this.closingRegionByPos.values().forEach((region) -> inUseFiles.add(region.file));
+		}
+		
+		Arrays.sort(regionFiles, Comparator.comparingLong(File::lastModified));
+		long targetSize = (MAX_CACHE_SIZE_IN_BYTES / 4) * 3;
+		for (File regionFile : regionFiles)
+		{
+			if (totalSize <= targetSize)
+			{
+				break;
+			}
+			
+			if (!inUseFiles.contains(regionFile))
+			{
+				long fileSize = regionFile.length();
+				if (regionFile.delete())
+				{
+					totalSize -= fileSize;
+				}
+			}
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	/** synchronized on itself */
+	private static class CacheRegion
+	{
+		public final File file;
+		/** null until the file has been read */
+		private CompoundTag structureTagByChunkPos = null;
+		private boolean isDirty = false;
+		/** set once this region has been evicted and saved, closed regions can't be read or modified */
+		public boolean isClosed = false;
+		
+		/** the region that was previously loaded for this file, null once it has finished saving */
+		private CacheRegion previousRegion;
+		/** counted down once this region has been closed, so a region replacing it can read the file */
+		private final CountDownLatch closedLatch = new CountDownLatch(1);
+		
+		public CacheRegion(File file, CacheRegion previousRegion)
+		{
+			this.file = file;
+			this.previousRegion = previousRegion;
+		}
+		
+		public synchronized CompoundTag get(ChunkPos chunkPos)
+		{
+			this.tryLoad();
+			String key = Long.toString(chunkPos.toLong());
+			return this.structureTagByChunkPos.contains(key) ? this.structureTagByChunkPos.getCompound(key) : null;
+		}
+		
+		public synchronized void put(ChunkPos chunkPos, CompoundTag structureTag)
+		{
+			this.tryLoad();
+			this.structureTagByChunkPos.put(Long.toString(chunkPos.toLong()), structureTag);
+			this.isDirty = true;
+		}
+		
+		private void tryLoad()
+		{
+			if (this.structureTagByChunkPos != null)
+			{
+				return;
+			}
+			
+			this.structureTagByChunkPos = new CompoundTag();
+			
+			// don't read the file while the previous region may still be writing it
+			if (this.previousRegion != null)
+			{
+				this.previousRegion.awaitClosed();
+				this.previousRegion = null;
+			}
+			
+			if (!this.file.exists())
+			{
+				return;
+			}
+			
+			try (DataInputStream stream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(this.file.toPath())))))
+			{
+				this.structureTagByChunkPos = NbtIo.read(stream);
+			}
+			catch (Exception e)
+			{
+				// the file will be overwritten the next time this region is saved
+				LOGGER.warn("Unable to read structure cache file [" + this.file + "], error: " + e.getMessage());
+			}
+		}
+		
+		public synchronized void trySave()
+		{
+			// closed regions have already been saved
+			if (!this.isDirty || this.isClosed)
+			{
+				return;
+			}
+			
+			try
+			{
+				Files.createDirectories(this.file.getParentFile().toPath());
+				
+				// write to a temporary file first so a crash while writing doesn't corrupt the existing file
+				File tempFile = new File(this.file.getPath() + ".tmp");
+				try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tempFile.toPath())))))
+				{
+					NbtIo.write(this.structureTagByChunkPos, stream);
+				}
+				Files.move(tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				
+				this.isDirty = false;
+			}
+			catch (IOException e)
+			{
+				LOGGER.warn("Unable to save structure cache file [" + this.file + "], error: " + e.getMessage());
+			}
+		}
+		
+		/** Saves this region and prevents any further reads or writes. */
+		public void close()
+		{
+			try
+			{
+				synchronized (this)
+				{
+					this.trySave();
+					this.isClosed = true;
+					this.structureTagByChunkPos = null;
+				}
+			}
+			finally
+			{
+				this.closedLatch.countDown();
+			}
+		}
+		
+		/** saving only takes a moment, so interrupts are deferred instead of risking reading a partially written region */
+		private void awaitClosed()
+		{
+			boolean interrupted = false;
+			while (true)
+			{
+				try
+				{
+					this.closedLatch.await();
+					break;
+				}
+				catch (InterruptedException e)
+				{
+					interrupted = true;
+				}
+			}
+			
+			if (interrupted)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+	}
+	
+}
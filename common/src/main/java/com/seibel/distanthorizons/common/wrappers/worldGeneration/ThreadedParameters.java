@@ -21,28 +21,23 @@
 package com.seibel.distanthorizons.common.wrappers.worldGeneration;
 
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment.PerfCalculator;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import net.minecraft.server.level.ServerLevel;
-import net.minecraft.world.level.WorldGenLevel;
-#if MC_VER >= MC_1_18_2
-import net.minecraft.world.level.levelgen.structure.StructureCheck;
-#endif
+import net.minecraft.world.level.ChunkPos;
 
 public final class ThreadedParameters
 {
 	private static final ThreadLocal<ThreadedParameters> LOCAL_PARAM = new ThreadLocal<>();
 	
 	final ServerLevel level;
-	public WorldGenStructFeatManager structFeat = null;
 	#if MC_VER >= MC_1_18_2
-	public StructureCheck structCheck;
+	/** shared between every thread, see {@link GlobalParameters#structCheck} */
+	public final SharedStructureCheck structCheck;
 	#endif
-	boolean isValid = true;
+	volatile boolean isValid = true;
+	/** events created on this thread run their stages on other threads, so this is updated from multiple threads */
 	public final PerfCalculator perf = new PerfCalculator();
 	
-	private static GlobalParameters previousGlobalParameters = null;
-	
 	
 	
 	public static ThreadedParameters getOrMake(GlobalParameters param)
@@ -60,17 +55,9 @@ public final class ThreadedParameters
 	
 	private ThreadedParameters(GlobalParameters param)
 	{
-		previousGlobalParameters = param;
-		
 		this.level = param.level;
-		#if MC_VER < MC_1_18_2
-		this.structFeat = new WorldGenStructFeatManager(param.worldGenSettings, level);
-		#elif MC_VER < MC_1_19_2
-		this.structCheck = this.createStructureCheck(param);
-		#else
-		this.structCheck = new StructureCheck(param.chunkScanner, param.registry, param.structures,
-				param.level.dimension(), param.generator, param.randomState, level, param.generator.getBiomeSource(), param.worldSeed,
-				param.fixerUpper);
+		#if MC_VER >= MC_1_18_2
+		this.structCheck = param.structCheck;
 		#endif
 	}
 	
@@ -78,32 +65,15 @@ public final class ThreadedParameters
 	
 	public void markAsInvalid() { isValid = false; }
 	
-	public void makeStructFeat(WorldGenLevel genLevel, GlobalParameters param)
-	{
-		#if MC_VER < MC_1_19_4
-		structFeat = new WorldGenStructFeatManager(param.worldGenSettings, genLevel #if MC_VER >= MC_1_18_2 , structCheck #endif );
-		#else
-		structFeat = new WorldGenStructFeatManager(param.worldOptions, genLevel, structCheck);
-		#endif
-	}
-	
 	
-	#if MC_VER >= MC_1_18_2 && MC_VER < MC_1_19_2
-	public void recreateStructureCheck()
-	{
-		if (previousGlobalParameters != null)
-		{
-			this.structCheck = createStructureCheck(previousGlobalParameters);
-		}
-	}
-	private StructureCheck createStructureCheck(GlobalParameters param)
-	{
-		return new StructureCheck(param.chunkScanner, param.registry, param.structures,
-				param.level.dimension(), param.generator, this.level, param.generator.getBiomeSource(), param.worldSeed,
-				param.fixerUpper);
-	}
+	#if MC_VER >= MC_1_18_2
+	/** 
+	 * The check is shared between threads, so instead of creating a new one
+	 * only the caches that could contain the given chunk are cleared.
+	 */
+	public void recreateStructureCheck(ChunkPos chunkPos) { this.structCheck.clearCaches(chunkPos); }
 	#else
-	public void recreateStructureCheck() { /* do nothing */ }	
+	public void recreateStructureCheck(ChunkPos chunkPos) { /* do nothing */ }	
 	#endif
 	
 }
\ No newline at end of file
@@ -22,6 +22,8 @@ package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
 import com.google.common.collect.Maps;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.Dynamic;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkLightStorage;
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
 
 import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
@@ -33,6 +35,7 @@ import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 
 
 import net.minecraft.core.Registry;
@@ -44,8 +47,10 @@ import net.minecraft.core.registries.Registries;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import net.minecraft.nbt.NbtOps;
+import net.minecraft.nbt.NbtUtils;
 import net.minecraft.resources.ResourceKey;
 import net.minecraft.resources.ResourceLocation;
+import net.minecraft.util.Mth;
 import net.minecraft.world.level.*;
 import net.minecraft.world.level.biome.Biome;
 import net.minecraft.world.level.biome.Biomes;
@@ -95,6 +100,22 @@ public class ChunkLoader
 	private static final String FLUID_TICKS_TAG_PRE18 = "LiquidTicks";
 	private static final ConfigBasedLogger LOGGER = BatchGenerationEnvironment.LOAD_LOGGER;
 	
+	#if MC_VER >= MC_1_18_2
+	private static final int BLOCKS_PER_SECTION = 16 * 16 * 16;
+	private static final int BIOMES_PER_SECTION = 4 * 4 * 4;
+	
+	/** 
+	 * Palette entries are generally shared between sections and chunks,
+	 * caching them prevents having to parse the same block states over and over again.
+	 */
+	private static final ThreadLocal<HashMap<CompoundTag, BlockState>> BLOCK_STATE_BY_PALETTE_TAG_REF = ThreadLocal.withInitial(HashMap::new);
+	private static final int MAX_CACHED_PALETTE_TAGS = 4096;
+	
+	/** reused between sections to reduce garbage */
+	private static final ThreadLocal<Object[]> PALETTE_ARRAY_REF = ThreadLocal.withInitial(() -> new Object[64]);
+	private static final ThreadLocal<int[]> PALETTE_INDEX_ARRAY_REF = ThreadLocal.withInitial(() -> new int[BLOCKS_PER_SECTION]);
+	#endif
+	
 	#if MC_VER >= MC_1_18_2
 	private static BlendingData readBlendingData(CompoundTag chunkData)
 	{
@@ -109,6 +130,201 @@ public class ChunkLoader
 	}
 	#endif
 	
+	#if MC_VER >= MC_1_18_2
+	private static PalettedContainer<BlockState> readBlockStateContainer(ChunkPos chunkPos, int sectionYPos, CompoundTag blockStatesTag)
+	{
+		PalettedContainer<BlockState> container = tryReadBlockStatesDirect(blockStatesTag);
+		if (container != null)
+		{
+			return container;
+		}
+		
+		// fall back to Minecraft's codec, this is much slower but can handle anything the direct reader can't
+		return BLOCK_STATE_CODEC.parse(NbtOps.INSTANCE, blockStatesTag).promotePartial(string -> logErrors(chunkPos, sectionYPos, string)).getOrThrow(false, LOGGER::error);
+	}
+	
+	/**
+	 * Reads the block state palette and data straight from the NBT,
+	 * bypassing the DataFixerUpper codecs, which are by far the slowest part of loading a chunk.
+	 * 
+	 * @return null if the data isn't in the expected format
+	 */
+	private static PalettedContainer<BlockState> tryReadBlockStatesDirect(CompoundTag blockStatesTag)
+	{
+		ListTag paletteTag = blockStatesTag.getList("palette", 10);
+		int paletteSize = paletteTag.size();
+		if (paletteSize == 0)
+		{
+			return null;
+		}
+		
+		HashMap<CompoundTag, BlockState> blockStateByPaletteTag = BLOCK_STATE_BY_PALETTE_TAG_REF.get();
+		if (blockStateByPaletteTag.size() > MAX_CACHED_PALETTE_TAGS)
+		{
+			blockStateByPaletteTag.clear();
+		}
+		
+		Object[] palette = getPaletteArray(paletteSize);
+		for (int i = 0; i < paletteSize; i++)
+		{
+			CompoundTag entryTag = paletteTag.getCompound(i);
+			BlockState blockState = blockStateByPaletteTag.get(entryTag);
+			if (blockState == null)
+			{
+				#if MC_VER < MC_1_19_4
+				blockState = NbtUtils.readBlockState(entryTag);
+				#else
+				blockState = NbtUtils.readBlockState(BuiltInRegistries.BLOCK.asLookup(), entryTag);
+				#endif
+				blockStateByPaletteTag.put(entryTag, blockState);
+			}
+			palette[i] = blockState;
+		}
+		
+		if (paletteSize == 1)
+		{
+			// the whole section is a single block, no data is needed
+			return new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, (BlockState) palette[0], PalettedContainer.Strategy.SECTION_STATES);
+		}
+		
+		// block states are always serialized with at least 4 bits per entry
+		int bitsPerEntry = Math.max(4, Mth.ceillog2(paletteSize));
+		int[] paletteIndices = PALETTE_INDEX_ARRAY_REF.get();
+		if (!unpackPaletteIndices(blockStatesTag.getLongArray("data"), bitsPerEntry, BLOCKS_PER_SECTION, paletteSize, paletteIndices))
+		{
+			return null;
+		}
+		
+		PalettedContainer<BlockState> container = new PalettedContainer<>(Block.BLOCK_STATE_REGISTRY, (BlockState) palette[0], PalettedContainer.Strategy.SECTION_STATES);
+		for (int index = 0; index < BLOCKS_PER_SECTION; index++)
+		{
+			int paletteIndex = paletteIndices[index];
+			if (paletteIndex != 0)
+			{
+				// index is in YZX order
+				container.getAndSetUnchecked(index & 15, (index >> 8) & 15, (index >> 4) & 15, (BlockState) palette[paletteIndex]);
+			}
+		}
+		return container;
+	}
+	
+	private static PalettedContainer<Holder<Biome>> readBiomeContainer(
+			ChunkPos chunkPos, int sectionYPos, CompoundTag biomesTag,
+			Registry<Biome> biomes, Holder<Biome> defaultBiome,
+			Codec<PalettedContainer<Holder<Biome>>> biomeCodec)
+	{
+		PalettedContainer<Holder<Biome>> container = tryReadBiomesDirect(biomesTag, biomes, defaultBiome);
+		if (container != null)
+		{
+			return container;
+		}
+		
+		return biomeCodec.parse(NbtOps.INSTANCE, biomesTag).promotePartial(string -> logErrors(chunkPos, sectionYPos, (String) string)).getOrThrow(false, LOGGER::error);
+	}
+	
+	/** 
+	 * Same as {@link ChunkLoader#tryReadBlockStatesDirect(CompoundTag)} but for biomes.
+	 * 
+	 * @return null if the data isn't in the expected format
+	 */
+	@SuppressWarnings("unchecked")
+	private static PalettedContainer<Holder<Biome>> tryReadBiomesDirect(CompoundTag biomesTag, Registry<Biome> biomes, Holder<Biome> defaultBiome)
+	{
+		ListTag paletteTag = biomesTag.getList("palette", 8);
+		int paletteSize = paletteTag.size();
+		if (paletteSize == 0)
+		{
+			return null;
+		}
+		
+		Object[] palette = getPaletteArray(paletteSize);
+		for (int i = 0; i < paletteSize; i++)
+		{
+			ResourceLocation biomeLocation = ResourceLocation.tryParse(paletteTag.getString(i));
+			if (biomeLocation == null)
+			{
+				return null;
+			}
+			
+			#if MC_VER < MC_1_19_4
+			Optional<? extends Holder<Biome>> biome = biomes.getHolder(ResourceKey.create(Registry.BIOME_REGISTRY, biomeLocation));
+			#else
+			Optional<? extends Holder<Biome>> biome = biomes.getHolder(ResourceKey.create(Registries.BIOME, biomeLocation));
+			#endif
+			palette[i] = biome.isPresent() ? biome.get() : defaultBiome;
+		}
+		
+		if (paletteSize == 1)
+		{
+			return new PalettedContainer<>(biomes.asHolderIdMap(), (Holder<Biome>) palette[0], PalettedContainer.Strategy.SECTION_BIOMES);
+		}
+		
+		int bitsPerEntry = Mth.ceillog2(paletteSize);
+		int[] paletteIndices = PALETTE_INDEX_ARRAY_REF.get();
+		if (!unpackPaletteIndices(biomesTag.getLongArray("data"), bitsPerEntry, BIOMES_PER_SECTION, paletteSize, paletteIndices))
+		{
+			return null;
+		}
+		
+		PalettedContainer<Holder<Biome>> container = new PalettedContainer<>(biomes.asHolderIdMap(), (Holder<Biome>) palette[0], PalettedContainer.Strategy.SECTION_BIOMES);
+		for (int index = 0; index < BIOMES_PER_SECTION; index++)
+		{
+			int paletteIndex = paletteIndices[index];
+			if (paletteIndex != 0)
+			{
+				container.getAndSetUnchecked(index & 3, (index >> 4) & 3, (index >> 2) & 3, (Holder<Biome>) palette[paletteIndex]);
+			}
+		}
+		return container;
+	}
+	
+	private static Object[] getPaletteArray(int minSize)
+	{
+		Object[] palette = PALETTE_ARRAY_REF.get();
+		if (palette.length < minSize)
+		{
+			palette = new Object[minSize];
+			PALETTE_ARRAY_REF.set(palette);
+		}
+		return palette;
+	}
+	
+	/**
+	 * Unpacks a {@link net.minecraft.util.SimpleBitStorage} formatted long array (entries never span two longs).
+	 * 
+	 * @return false if the data length doesn't match the entry count or an index is outside the palette
+	 */
+	private static boolean unpackPaletteIndices(long[] data, int bitsPerEntry, int entryCount, int paletteSize, int[] paletteIndices)
+	{
+		int entriesPerLong = 64 / bitsPerEntry;
+		int expectedLength = (entryCount + entriesPerLong - 1) / entriesPerLong;
+		if (data.length != expectedLength)
+		{
+			return false;
+		}
+		
+		long mask = (1L << bitsPerEntry) - 1L;
+		int index = 0;
+		for (int i = 0; i < data.length; i++)
+		{
+			long bits = data[i];
+			for (int j = 0; j < entriesPerLong && index < entryCount; j++)
+			{
+				int paletteIndex = (int) (bits & mask);
+				if (paletteIndex >= paletteSize)
+				{
+					return false;
+				}
+				
+				paletteIndices[index] = paletteIndex;
+				index++;
+				bits >>>= bitsPerEntry;
+			}
+		}
+		return true;
+	}
+	#endif
+	
 	private static LevelChunkSection[] readSections(LevelAccessor level, ChunkPos chunkPos, CompoundTag chunkData)
 	{
 		#if MC_VER >= MC_1_18_2
@@ -127,6 +343,7 @@ public class ChunkLoader
 		Codec<PalettedContainer<Holder<Biome>>> biomeCodec = PalettedContainer.codecRW(
 				biomes.asHolderIdMap(), biomes.holderByNameCodec(), PalettedContainer.Strategy.SECTION_BIOMES, biomes.getHolderOrThrow(Biomes.PLAINS));
 			#endif
+		Holder<Biome> defaultBiome = biomes.getHolderOrThrow(Biomes.PLAINS);
 		#endif
 		int i = #if MC_VER < MC_1_17_1 16; #else level.getSectionsCount(); #endif
 		LevelChunkSection[] chunkSections = new LevelChunkSection[i];
@@ -164,7 +381,7 @@ public class ChunkLoader
 				#endif
 				
 				blockStateContainer = tagSection.contains("block_states", 10)
-						? BLOCK_STATE_CODEC.parse(NbtOps.INSTANCE, tagSection.getCompound("block_states")).promotePartial(string -> logErrors(chunkPos, sectionYPos, string)).getOrThrow(false, LOGGER::error)
+						? readBlockStateContainer(chunkPos, sectionYPos, tagSection.getCompound("block_states"))
 						: new PalettedContainer<BlockState>(Block.BLOCK_STATE_REGISTRY, Blocks.AIR.defaultBlockState(), PalettedContainer.Strategy.SECTION_STATES);
 
 				#if MC_VER < MC_1_18_2
@@ -173,8 +390,8 @@ public class ChunkLoader
 						: new PalettedContainer<Biome>(biomes, biomes.getOrThrow(Biomes.PLAINS), PalettedContainer.Strategy.SECTION_BIOMES);
 				#else
 				biomeContainer = tagSection.contains("biomes", 10)
-						? biomeCodec.parse(NbtOps.INSTANCE, tagSection.getCompound("biomes")).promotePartial(string -> logErrors(chunkPos, i, (String) string)).getOrThrow(false, LOGGER::error)
-						: new PalettedContainer<Holder<Biome>>(biomes.asHolderIdMap(), biomes.getHolderOrThrow(Biomes.PLAINS), PalettedContainer.Strategy.SECTION_BIOMES);
+						? readBiomeContainer(chunkPos, sectionYPos, tagSection.getCompound("biomes"), biomes, defaultBiome, biomeCodec)
+						: new PalettedContainer<Holder<Biome>>(biomes.asHolderIdMap(), defaultBiome, PalettedContainer.Strategy.SECTION_BIOMES);
 				#endif
 				#if MC_VER < MC_1_20_1
 				chunkSections[sectionId] = new LevelChunkSection(sectionYPos, blockStateContainer, biomeContainer);
@@ -200,19 +417,6 @@ public class ChunkLoader
 		Heightmap.primeHeightmaps(chunk, ChunkStatus.FULL.heightmapsAfter());
 	}
 	
-	private static void readPostPocessings(LevelChunk chunk, CompoundTag chunkData)
-	{
-		ListTag tagPostProcessings = chunkData.getList("PostProcessing", 9);
-		for (int n = 0; n < tagPostProcessings.size(); ++n)
-		{
-			ListTag listTag3 = tagPostProcessings.getList(n);
-			for (int o = 0; o < listTag3.size(); ++o)
-			{
-				chunk.addPackedPostProcess(listTag3.getShort(o), n);
-			}
-		}
-	}
-	
 	public static ChunkStatus.ChunkType readChunkType(CompoundTag tagLevel)
 	{
 		ChunkStatus chunkStatus = ChunkStatus.byName(tagLevel.getString("Status"));
@@ -223,6 +427,111 @@ public class ChunkLoader
 		return ChunkStatus.ChunkType.PROTOCHUNK;
 	}
 	
+	/** @return true if the given chunk data was saved after the chunk was fully generated */
+	public static boolean isFullChunk(CompoundTag chunkData)
+	{
+		#if MC_VER < MC_1_18_2
+		CompoundTag tagLevel = chunkData.getCompound("Level");
+		#else
+		CompoundTag tagLevel = chunkData;
+		#endif
+		
+		return readChunkType(tagLevel) == ChunkStatus.ChunkType.LEVELCHUNK;
+	}
+	
+	/**
+	 * Reads the light levels Minecraft saved with the chunk into the given wrapper,
+	 * so the chunk doesn't have to be re-lit by DH's lighting engine.
+	 * 
+	 * @return false if the chunk wasn't lit before it was saved or if saved light can't be trusted for this MC version,
+	 * in which case the wrapper isn't modified
+	 */
+	public static boolean readSavedLight(CompoundTag chunkData, ChunkWrapper chunkWrapper, boolean hasSkyLight)
+	{
+		#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
+		// MC's lighting engine doesn't work consistently enough to trust for 1.16 or 1.17,
+		// the same as ChunkWrapper#isLightCorrect()
+		return false;
+		#else
+		CompoundTag tagLevel = chunkData;
+		
+		if (!tagLevel.getBoolean("isLightOn"))
+		{
+			return false;
+		}
+		
+		ChunkLightStorage blockLightStorage = new ChunkLightStorage(chunkWrapper.getMinBuildHeight(), chunkWrapper.getMaxBuildHeight());
+		ChunkLightStorage skyLightStorage = new ChunkLightStorage(chunkWrapper.getMinBuildHeight(), chunkWrapper.getMaxBuildHeight());
+		int sectionCount = blockLightStorage.getSectionCount();
+		int minSectionY = chunkWrapper.getMinBuildHeight() >> 4;
+		
+		byte[][] blockLightBySection = new byte[sectionCount][];
+		byte[][] skyLightBySection = new byte[sectionCount][];
+		ListTag tagSections = tagLevel.getList("Sections", 10);
+		if (tagSections.isEmpty()) tagSections = tagLevel.getList("sections", 10);
+		for (int i = 0; i < tagSections.size(); i++)
+		{
+			CompoundTag tagSection = tagSections.getCompound(i);
+			
+			// Minecraft also saves light for the sections directly above and below the chunk
+			int sectionIndex = tagSection.getByte("Y") - minSectionY;
+			if (sectionIndex < 0 || sectionIndex >= sectionCount)
+			{
+				continue;
+			}
+			
+			if (tagSection.contains("BlockLight", 7))
+			{
+				blockLightBySection[sectionIndex] = tagSection.getByteArray("BlockLight");
+			}
+			if (tagSection.contains("SkyLight", 7))
+			{
+				skyLightBySection[sectionIndex] = tagSection.getByteArray("SkyLight");
+			}
+		}
+		
+		// sections without saved block light are completely dark,
+		// sections without saved sky light are lit the same as the bottom of the nearest section above them
+		byte[] skyLightAbove = null;
+		for (int sectionIndex = sectionCount - 1; sectionIndex >= 0; sectionIndex--)
+		{
+			byte[] blockLight = blockLightBySection[sectionIndex];
+			if (blockLight != null && blockLight.length == ChunkLightStorage.LightSection.PACKED_BYTE_COUNT)
+			{
+				blockLightStorage.setPackedSection(sectionIndex, blockLight);
+			}
+			
+			if (hasSkyLight)
+			{
+				byte[] skyLight = skyLightBySection[sectionIndex];
+				if (skyLight == null || skyLight.length != ChunkLightStorage.LightSection.PACKED_BYTE_COUNT)
+				{
+					skyLight = new byte[ChunkLightStorage.LightSection.PACKED_BYTE_COUNT];
+					if (skyLightAbove == null)
+					{
+						Arrays.fill(skyLight, (byte) 0xFF);
+					}
+					else
+					{
+						// the bottom layer of a section is its first 16 x 16 light levels
+						int layerByteCount = ChunkLightStorage.LightSection.PACKED_BYTE_COUNT / 16;
+						for (int y = 0; y < 16; y++)
+						{
+							System.arraycopy(skyLightAbove, 0, skyLight, y * layerByteCount, layerByteCount);
+						}
+					}
+				}
+				
+				skyLightStorage.setPackedSection(sectionIndex, skyLight);
+				skyLightAbove = skyLight;
+			}
+		}
+		
+		chunkWrapper.setDhLightFromSave(blockLightStorage, skyLightStorage);
+		return true;
+		#endif
+	}
+	
 	public static LevelChunk read(WorldGenLevel level, ChunkPos chunkPos, CompoundTag chunkData)
 	{
 		#if MC_VER < MC_1_18_2
@@ -297,17 +606,9 @@ public class ChunkLoader
 				: new ProtoTickList<Fluid>(fluid -> (fluid == null || fluid == Fluids.EMPTY), chunkPos,
 				tagLevel.getList("LiquidsToBeTicked", 9)#if MC_VER >= MC_1_17_1 , level #endif );
 		#else
-		#if MC_VER < MC_1_19_4
-		LevelChunkTicks<Block> blockTicks = LevelChunkTicks.load(tagLevel.getList(BLOCK_TICKS_TAG_18, 10),
-				string -> Registry.BLOCK.getOptional(ResourceLocation.tryParse(string)), chunkPos);
-		LevelChunkTicks<Fluid> fluidTicks = LevelChunkTicks.load(tagLevel.getList(FLUID_TICKS_TAG_18, 10),
-				string -> Registry.FLUID.getOptional(ResourceLocation.tryParse(string)), chunkPos);
-		#else
-		LevelChunkTicks<Block> blockTicks = LevelChunkTicks.load(tagLevel.getList(BLOCK_TICKS_TAG_18, 10),
-				(string -> BuiltInRegistries.BLOCK.getOptional(ResourceLocation.tryParse(string))), chunkPos);
-		LevelChunkTicks<Fluid> fluidTicks = LevelChunkTicks.load(tagLevel.getList(FLUID_TICKS_TAG_18, 10),
-				string -> BuiltInRegistries.FLUID.getOptional(ResourceLocation.tryParse(string)), chunkPos);
-		#endif
+		// DH never ticks these chunks, so there's no reason to parse the scheduled ticks
+		LevelChunkTicks<Block> blockTicks = new LevelChunkTicks<>();
+		LevelChunkTicks<Fluid> fluidTicks = new LevelChunkTicks<>();
 		#endif
 		
 		LevelChunkSection[] levelChunkSections = readSections(level, chunkPos, tagLevel);
@@ -324,7 +625,7 @@ public class ChunkLoader
 		// Set some states after object creation
 		chunk.setLightCorrect(isLightOn);
 		readHeightmaps(chunk, chunkData);
-		readPostPocessings(chunk, chunkData);
+		// tile entities, structures and post-processing aren't needed for LOD building, so they're skipped entirely
 		return chunk;
 	}
 	
@@ -65,18 +65,28 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	public final int size;
 	private final ChunkPos firstPos;
 	private final List<ChunkAccess> cache;
+	private final ChunkStatus chunkStatus;
+	/** 
+	 * The same chunks as {@link DhLitWorldGenRegion#cache} in the same order, with any {@link LevelChunk}s wrapped. <br>
+	 * Never modified after construction, so it can be read from any thread without locking.
+	 */
+	private final ChunkAccess[] wrappedChunkArray;
+	/** only accessed while holding {@link DhLitWorldGenRegion#getChunkLock} */
 	Long2ObjectOpenHashMap<ChunkAccess> chunkMap = new Long2ObjectOpenHashMap<ChunkAccess>();
 	
 	/** 
+	 * Used when accessing chunks outside this region. <br>
 	 * Present to reduce the chance that we accidentally break underlying MC code that isn't thread safe, 
 	 * specifically: "it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap.getAndMoveToFirst()"
 	 */
 	ReentrantLock getChunkLock = new ReentrantLock();
 	
-	#if MC_VER < MC_1_18_2
+	/** if set this is used instead of the chunk in the middle of the chunk list, see {@link DhLitWorldGenRegion#forChunk} */
 	private ChunkPos overrideCenterPos = null;
 	
+	#if MC_VER < MC_1_18_2
 	public void setOverrideCenter(ChunkPos pos) { overrideCenterPos = pos; }
+	#endif
 	#if MC_VER < MC_1_17_1
 	@Override
 	public int getCenterX() 
@@ -86,7 +96,7 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	@Override
 	public int getCenterZ() 
 	{
-		return overrideCenterPos==null ? super.getCenterX() : overrideCenterPos.z;
+		return overrideCenterPos==null ? super.getCenterZ() : overrideCenterPos.z;
 	}
 	#else
 	@Override
@@ -95,7 +105,6 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 		return overrideCenterPos == null ? super.getCenter() : overrideCenterPos;
 	}
 	#endif
-	#endif
 	
 	
 	
@@ -110,9 +119,50 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 		this.lightEngine = lightEngine;
 		this.writeRadius = writeRadius;
 		this.cache = chunkList;
+		this.chunkStatus = chunkStatus;
 		this.size = Mth.floor(Math.sqrt(chunkList.size()));
+		
+		// features look up chunks constantly, so the imposter wrappers are only created once
+		this.wrappedChunkArray = new ChunkAccess[chunkList.size()];
+		for (int i = 0; i < chunkList.size(); i++)
+		{
+			ChunkAccess chunk = chunkList.get(i);
+			if (chunk instanceof LevelChunk)
+			{
+				chunk = new ImposterProtoChunk((LevelChunk) chunk #if MC_VER >= MC_1_18_2 , true #endif );
+			}
+			this.wrappedChunkArray[i] = chunk;
+		}
+	}
+	
+	/** see {@link DhLitWorldGenRegion#forChunk} */
+	private DhLitWorldGenRegion(DhLitWorldGenRegion parentRegion, ChunkPos centerPos)
+	{
+		super(parentRegion.getLevel(), parentRegion.cache #if MC_VER >= MC_1_17_1 , parentRegion.chunkStatus, 1 #endif );
+		this.firstPos = parentRegion.firstPos;
+		this.generator = parentRegion.generator;
+		this.lightEngine = parentRegion.lightEngine;
+		this.writeRadius = 1;
+		this.cache = parentRegion.cache;
+		this.chunkStatus = parentRegion.chunkStatus;
+		this.size = parentRegion.size;
+		this.wrappedChunkArray = parentRegion.wrappedChunkArray;
+		
+		// chunks outside the region have to be the same objects for every view, otherwise their changes would be lost
+		this.chunkMap = parentRegion.chunkMap;
+		this.getChunkLock = parentRegion.getChunkLock;
+		
+		this.overrideCenterPos = centerPos;
 	}
 	
+	/** 
+	 * Creates a region over the same chunks that is centered on the given chunk
+	 * and can only write to that chunk and its direct neighbors. <br>
+	 * Each returned region has its own {@link WorldGenRegion} state (IE its random and structure manager),
+	 * so chunks that are at least 3 chunks apart can be decorated at the same time using separate regions.
+	 */
+	public DhLitWorldGenRegion forChunk(ChunkPos centerPos) { return new DhLitWorldGenRegion(this, centerPos); }
+	
 	
 	
 	#if MC_VER >= MC_1_17_1
@@ -214,43 +264,19 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	// Override to ensure no other mod mixins cause skipping the overrided
 	// getChunk(...)
 	@Override
-	public ChunkAccess getChunk(int i, int j)
-	{
-		try
-		{
-			// lock is to prevent issues with underlying MC code that doesn't support multithreading
-			this.getChunkLock.lock();
-			return this.getChunk(i, j, ChunkStatus.EMPTY);
-		}
-		finally
-		{
-			this.getChunkLock.unlock();
-		}
-	}
+	public ChunkAccess getChunk(int i, int j) { return this.getChunk(i, j, ChunkStatus.EMPTY, true); }
 	
 	// Override to ensure no other mod mixins cause skipping the overrided
 	// getChunk(...)
 	@Override
-	public ChunkAccess getChunk(int i, int j, ChunkStatus chunkStatus)
-	{
-		try
-		{
-			// lock is to prevent issues with underlying MC code that doesn't support multithreading
-			this.getChunkLock.lock();
-			return this.getChunk(i, j, chunkStatus, true);
-		}
-		finally
-		{
-			this.getChunkLock.unlock();
-		}
-	}
+	public ChunkAccess getChunk(int i, int j, ChunkStatus chunkStatus) { return this.getChunk(i, j, chunkStatus, true); }
 	
 	// Use this instead of super.getChunk() to bypass C2ME concurrency checks
 	private ChunkAccess superGetChunk(int x, int z, ChunkStatus cs)
 	{
 		int k = x - firstPos.x;
 		int l = z - firstPos.z;
-		return cache.get(k + l * size);
+		return this.wrappedChunkArray[k + l * size];
 	}
 	
 	// Use this instead of super.hasChunk() to bypass C2ME concurrency checks
@@ -266,41 +292,61 @@ public class DhLitWorldGenRegion extends WorldGenRegion
 	@Nullable
 	public ChunkAccess getChunk(int i, int j, ChunkStatus chunkStatus, boolean bl)
 	{
-		ChunkAccess chunk = getChunkAccess(i, j, chunkStatus, bl);
-		if (chunk instanceof LevelChunk)
+		ChunkAccess chunk;
+		if (superHasChunk(i, j))
 		{
-			chunk = new ImposterProtoChunk((LevelChunk) chunk #if MC_VER >= MC_1_18_2 , true #endif );
+			// chunks inside the region don't need to lock since the array is never modified
+			chunk = superGetChunk(i, j, ChunkStatus.EMPTY);
+			if (chunk.getStatus().isOrAfter(chunkStatus))
+			{
+				return chunk;
+			}
+			if (!bl)
+				return null;
+		}
+		else
+		{
+			if (!bl)
+				return null;
+			
+			try
+			{
+				// lock is to prevent issues with underlying MC code that doesn't support multithreading
+				this.getChunkLock.lock();
+				chunk = this.getOutOfRangeChunk(i, j);
+			}
+			finally
+			{
+				this.getChunkLock.unlock();
+			}
+		}
+		
+		if (chunkStatus != ChunkStatus.EMPTY && chunkStatus != debugTriggeredForStatus)
+		{
+			LOGGER.info("WorldGen requiring " + chunkStatus
+					+ " outside expected range detected. Force passing EMPTY chunk and seeing if it works.");
+			debugTriggeredForStatus = chunkStatus;
 		}
 		return chunk;
 	}
 	
 	private static ChunkStatus debugTriggeredForStatus = null;
 	
-	private ChunkAccess getChunkAccess(int i, int j, ChunkStatus chunkStatus, boolean bl)
+	/** should only be called while holding {@link DhLitWorldGenRegion#getChunkLock} */
+	private ChunkAccess getOutOfRangeChunk(int i, int j)
 	{
-		ChunkAccess chunk = superHasChunk(i, j) ? superGetChunk(i, j, ChunkStatus.EMPTY) : null;
-		if (chunk != null && chunk.getStatus().isOrAfter(chunkStatus))
-		{
-			return chunk;
-		}
-		if (!bl)
-			return null;
+		ChunkAccess chunk = chunkMap.get(ChunkPos.asLong(i, j));
 		if (chunk == null)
 		{
-			chunk = chunkMap.get(ChunkPos.asLong(i, j));
+			chunk = generator.generate(i, j);
 			if (chunk == null)
-			{
-				chunk = generator.generate(i, j);
-				if (chunk == null)
-					throw new NullPointerException("The provided generator should not return null!");
-				chunkMap.put(ChunkPos.asLong(i, j), chunk);
-			}
+				throw new NullPointerException("The provided generator should not return null!");
+			chunkMap.put(ChunkPos.asLong(i, j), chunk);
 		}
-		if (chunkStatus != ChunkStatus.EMPTY && chunkStatus != debugTriggeredForStatus)
+		
+		if (chunk instanceof LevelChunk)
 		{
-			LOGGER.info("WorldGen requiring " + chunkStatus
-					+ " outside expected range detected. Force passing EMPTY chunk and seeing if it works.");
-			debugTriggeredForStatus = chunkStatus;
+			chunk = new ImposterProtoChunk((LevelChunk) chunk #if MC_VER >= MC_1_18_2 , true #endif );
 		}
 		return chunk;
 	}
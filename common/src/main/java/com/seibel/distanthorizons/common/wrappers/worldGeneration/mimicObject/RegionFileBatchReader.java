@@ -0,0 +1,455 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
+
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.DhWorldGenSettings;
+import com.seibel.distanthorizons.core.logging.ConfigBasedLogger;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.world.level.ChunkPos;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads every chunk for a group of positions at once,
+ * instead of going through {@link RegionFileStorageExternalCache#read(ChunkPos)} for each position. <br><br>
+ *
+ * Positions are grouped by region file, each region's header is only read once,
+ * the chunk data is read in sector order (so the reads are sequential on disk)
+ * and then the chunks are decompressed and parsed in parallel. <br><br>
+ *
+ * This reads the .mca files directly using the same format as {@link net.minecraft.world.level.chunk.storage.RegionFile},
+ * any chunk that can't be read here (IE oversized chunks stored in external .mcc files or a read that
+ * happened while the server was writing the chunk) is left out of the result so the caller can fall back
+ * to the normal read path. <br>
+ * Chunks whose saved position doesn't match the position they were read for are also left out.
+ */
+public class RegionFileBatchReader
+{
+	private static final ConfigBasedLogger LOGGER = BatchGenerationEnvironment.LOAD_LOGGER;
+	
+	private static final int SECTOR_BYTES = 4096;
+	private static final int REGION_WIDTH_IN_CHUNKS = 32;
+	
+	// compression types, see RegionFileVersion
+	private static final byte VERSION_GZIP = 1;
+	private static final byte VERSION_DEFLATE = 2;
+	private static final byte VERSION_NONE = 3;
+	/** flag added to the compression type when the chunk is stored in a separate .mcc file */
+	private static final byte EXTERNAL_STREAM_FLAG = (byte) 128;
+	
+	
+	
+	/** @param storageFolder the folder containing the "r.x.z.mca" files */
+	public static BatchReadResult readChunks(Path storageFolder, List<ChunkPos> chunkPosList)
+	{
+		BatchReadResult result = new BatchReadResult();
+		
+		// read the raw (compressed) data
+		ArrayList<RawChunk> rawChunkList = new ArrayList<>(chunkPosList.size());
+		for (Long2ObjectMap.Entry<ArrayList<ChunkPos>> entry : groupByRegion(chunkPosList).long2ObjectEntrySet())
+		{
+			ArrayList<ChunkPos> regionChunkPosList = entry.getValue();
+			Path regionFilePath = getRegionFilePath(storageFolder, regionChunkPosList.get(0));
+			if (!Files.exists(regionFilePath))
+			{
+				for (ChunkPos chunkPos : regionChunkPosList)
+				{
+					result.missingChunkPosSet.add(chunkPos.toLong());
+				}
+				continue;
+			}
+			
+			try
+			{
+				readRegion(regionFilePath, regionChunkPosList, rawChunkList, result);
+			}
+			catch (IOException e)
+			{
+				// the caller will fall back to the normal read path for these chunks
+				LOGGER.warn("Unable to batch read region file [" + regionFilePath + "], error: " + e.getMessage(), e);
+			}
+		}
+		
+		
+		// decompress and parse the chunks,
+		// this uses DH's parallel step pool instead of the JVM-wide common pool, which is shared with Minecraft and other mods
+		CompoundTag[] parsedTags = new CompoundTag[rawChunkList.size()];
+		CompletableFuture<?>[] parseFutures = new CompletableFuture[rawChunkList.size()];
+		for (int i = 0; i < rawChunkList.size(); i++)
+		{
+			int index = i;
+			parseFutures[i] = CompletableFuture.runAsync(() -> parsedTags[index] = tryParseChunk(rawChunkList.get(index)), BatchGenerationEnvironment.getParallelStepPool());
+		}
+		
+		try
+		{
+			CompletableFuture.allOf(parseFutures).get();
+		}
+		catch (InterruptedException e)
+		{
+			// the event was canceled, stop any chunks that haven't started yet
+			for (CompletableFuture<?> parseFuture : parseFutures)
+			{
+				parseFuture.cancel(false);
+			}
+			Thread.currentThread().interrupt();
+			return result;
+		}
+		catch (ExecutionException e)
+		{
+			// any chunks that weren't parsed will be read by the normal read path
+			LOGGER.warn("Unable to parse batch read chunks, error: " + e.getMessage(), e);
+		}
+		
+		for (int i = 0; i < parsedTags.length; i++)
+		{
+			ChunkPos chunkPos = rawChunkList.get(i).pos;
+			if (parsedTags[i] == null)
+			{
+				continue;
+			}
+			
+			if (!isTagAtPos(parsedTags[i], chunkPos))
+			{
+				// the header and data were probably read while the server was moving the chunk,
+				// leave the chunk out so the normal read path (which does the same check) handles it
+				LOGGER.debug("Batch read chunk data for [" + chunkPos + "] contained a different position, falling back to the normal read path.");
+				continue;
+			}
+			
+			result.chunkDataByPos.put(chunkPos.toLong(), parsedTags[i]);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Only reads the region file headers, which is much faster than reading the chunks themselves. <br>
+	 * Note: a chunk existing doesn't mean it has been fully generated.
+	 *
+	 * @param storageFolder the folder containing the "r.x.z.mca" files
+	 * @return true if every given position has been saved to its region file
+	 */
+	public static boolean allChunksExist(Path storageFolder, List<ChunkPos> chunkPosList) throws IOException
+	{
+		for (Long2ObjectMap.Entry<ArrayList<ChunkPos>> entry : groupByRegion(chunkPosList).long2ObjectEntrySet())
+		{
+			ArrayList<ChunkPos> regionChunkPosList = entry.getValue();
+			long[] existingChunkBits = readExistingChunkBits(getRegionFilePath(storageFolder, regionChunkPosList.get(0)));
+			if (existingChunkBits == null)
+			{
+				return false;
+			}
+			
+			for (ChunkPos chunkPos : regionChunkPosList)
+			{
+				int localX = Math.floorMod(chunkPos.x, REGION_WIDTH_IN_CHUNKS);
+				int localZ = Math.floorMod(chunkPos.z, REGION_WIDTH_IN_CHUNKS);
+				if (!isChunkBitSet(existingChunkBits, localX, localZ))
+				{
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Only reads the region file's header. <br>
+	 * Use {@link RegionFileBatchReader#isChunkBitSet} to check the returned bits.
+	 *
+	 * @return one bit for each chunk in the region that has been saved, null if the region file doesn't exist
+	 */
+	@Nullable
+	public static long[] readExistingChunkBits(Path regionFilePath) throws IOException
+	{
+		if (!Files.exists(regionFilePath))
+		{
+			return null;
+		}
+		
+		try (FileChannel channel = FileChannel.open(regionFilePath, StandardOpenOption.READ))
+		{
+			ByteBuffer headerBuffer = readFully(channel, 0, SECTOR_BYTES);
+			if (headerBuffer.remaining() < SECTOR_BYTES)
+			{
+				return null;
+			}
+			
+			IntBuffer offsets = headerBuffer.asIntBuffer();
+			long[] existingChunkBits = new long[(REGION_WIDTH_IN_CHUNKS * REGION_WIDTH_IN_CHUNKS) / Long.SIZE];
+			for (int i = 0; i < REGION_WIDTH_IN_CHUNKS * REGION_WIDTH_IN_CHUNKS; i++)
+			{
+				if (offsets.get(i) != 0)
+				{
+					existingChunkBits[i / Long.SIZE] |= 1L << (i % Long.SIZE);
+				}
+			}
+			return existingChunkBits;
+		}
+	}
+	
+	/**
+	 * @param localX relative to the region's minimum chunk, between 0 and 31
+	 * @param localZ relative to the region's minimum chunk, between 0 and 31
+	 */
+	public static boolean isChunkBitSet(long[] existingChunkBits, int localX, int localZ)
+	{
+		int index = localX + (localZ * REGION_WIDTH_IN_CHUNKS);
+		return (existingChunkBits[index / Long.SIZE] & (1L << (index % Long.SIZE))) != 0;
+	}
+	
+	private static Long2ObjectOpenHashMap<ArrayList<ChunkPos>> groupByRegion(List<ChunkPos> chunkPosList)
+	{
+		Long2ObjectOpenHashMap<ArrayList<ChunkPos>> chunkPosListByRegionPos = new Long2ObjectOpenHashMap<>();
+		for (ChunkPos chunkPos : chunkPosList)
+		{
+			long regionPos = ChunkPos.asLong(chunkPos.getRegionX(), chunkPos.getRegionZ());
+			chunkPosListByRegionPos.computeIfAbsent(regionPos, (newRegionPos) -> new ArrayList<>()).add(chunkPos);
+		}
+		return chunkPosListByRegionPos;
+	}
+	
+	private static Path getRegionFilePath(Path storageFolder, ChunkPos chunkPos) { return storageFolder.resolve("r." + chunkPos.getRegionX() + "." + chunkPos.getRegionZ() + ".mca"); }
+	
+	private static void readRegion(Path regionFilePath, ArrayList<ChunkPos> chunkPosList, ArrayList<RawChunk> rawChunkList, BatchReadResult result) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(regionFilePath, StandardOpenOption.READ))
+		{
+			long fileSize = channel.size();
+			ByteBuffer fileBuffer = null;
+			// memory mapping is disabled by default since some operating systems (IE Windows)
+			// prevent resizing a file while it's mapped, which the server may need to do while we're reading
+			if (DhWorldGenSettings.useMemoryMappedRegionFiles)
+			{
+				fileBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+			}
+			
+			
+			// read the header
+			ByteBuffer headerBuffer;
+			if (fileBuffer != null)
+			{
+				headerBuffer = fileBuffer.duplicate();
+				headerBuffer.limit(Math.min(SECTOR_BYTES, (int) fileSize));
+			}
+			else
+			{
+				headerBuffer = readFully(channel, 0, SECTOR_BYTES);
+			}
+			
+			if (headerBuffer.remaining() < SECTOR_BYTES)
+			{
+				// empty or corrupt file
+				return;
+			}
+			IntBuffer offsets = headerBuffer.slice().asIntBuffer();
+			
+			
+			// determine where each chunk is
+			ArrayList<RawChunk> regionRawChunks = new ArrayList<>(chunkPosList.size());
+			for (ChunkPos chunkPos : chunkPosList)
+			{
+				int localX = Math.floorMod(chunkPos.x, REGION_WIDTH_IN_CHUNKS);
+				int localZ = Math.floorMod(chunkPos.z, REGION_WIDTH_IN_CHUNKS);
+				int packedOffset = offsets.get(localX + localZ * REGION_WIDTH_IN_CHUNKS);
+				if (packedOffset == 0)
+				{
+					result.missingChunkPosSet.add(chunkPos.toLong());
+					continue;
+				}
+				
+				int sectorNumber = packedOffset >>> 8;
+				int sectorCount = packedOffset & 0xFF;
+				regionRawChunks.add(new RawChunk(chunkPos, sectorNumber, sectorCount));
+			}
+			
+			// read in sector order so the disk access is sequential
+			regionRawChunks.sort((a, b) -> Integer.compare(a.sectorNumber, b.sectorNumber));
+			for (RawChunk rawChunk : regionRawChunks)
+			{
+				long byteOffset = (long) rawChunk.sectorNumber * SECTOR_BYTES;
+				int byteLength = rawChunk.sectorCount * SECTOR_BYTES;
+				if (byteOffset + byteLength > fileSize)
+				{
+					// truncated file or the chunk is currently being written
+					continue;
+				}
+				
+				ByteBuffer chunkBuffer;
+				if (fileBuffer != null)
+				{
+					chunkBuffer = fileBuffer.duplicate();
+					chunkBuffer.position((int) byteOffset);
+					chunkBuffer.limit((int) byteOffset + byteLength);
+					chunkBuffer = chunkBuffer.slice();
+				}
+				else
+				{
+					chunkBuffer = readFully(channel, byteOffset, byteLength);
+				}
+				
+				if (chunkBuffer.remaining() < 5)
+				{
+					continue;
+				}
+				
+				// length includes the compression type byte
+				int dataLength = chunkBuffer.getInt() - 1;
+				byte compressionType = chunkBuffer.get();
+				if ((compressionType & EXTERNAL_STREAM_FLAG) != 0
+					|| dataLength <= 0
+					|| dataLength > chunkBuffer.remaining())
+				{
+					continue;
+				}
+				
+				rawChunk.compressionType = compressionType;
+				rawChunk.data = new byte[dataLength];
+				chunkBuffer.get(rawChunk.data);
+				rawChunkList.add(rawChunk);
+			}
+		}
+	}
+	
+	private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining())
+		{
+			int readCount = channel.read(buffer, position + buffer.position());
+			if (readCount < 0)
+			{
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/** @return true if the chunk data's saved position matches the position it was read for */
+	private static boolean isTagAtPos(CompoundTag chunkTag, ChunkPos chunkPos)
+	{
+		#if MC_VER < MC_1_18_2
+		// before 1.18 everything is stored under the "Level" tag
+		chunkTag = chunkTag.getCompound("Level");
+		#endif
+		
+		if (!chunkTag.contains("xPos") || !chunkTag.contains("zPos"))
+		{
+			return false;
+		}
+		return chunkTag.getInt("xPos") == chunkPos.x
+				&& chunkTag.getInt("zPos") == chunkPos.z;
+	}
+	
+	private static CompoundTag tryParseChunk(RawChunk rawChunk)
+	{
+		try (InputStream compressedStream = new ByteArrayInputStream(rawChunk.data))
+		{
+			InputStream decompressedStream;
+			switch (rawChunk.compressionType)
+			{
+				case VERSION_GZIP:
+					decompressedStream = new GZIPInputStream(compressedStream);
+					break;
+				case VERSION_DEFLATE:
+					decompressedStream = new InflaterInputStream(compressedStream);
+					break;
+				case VERSION_NONE:
+					decompressedStream = compressedStream;
+					break;
+				default:
+					// unknown compression, let the normal read path handle it
+					return null;
+			}
+			
+			try (DataInputStream dataStream = new DataInputStream(new BufferedInputStream(decompressedStream)))
+			{
+				return NbtIo.read(dataStream);
+			}
+		}
+		catch (Exception e)
+		{
+			// the chunk was probably being written while we read it
+			return null;
+		}
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	public static class BatchReadResult
+	{
+		/** chunks that were successfully read */
+		public final Long2ObjectOpenHashMap<CompoundTag> chunkDataByPos = new Long2ObjectOpenHashMap<>();
+		/** chunks that definitely don't exist on disk */
+		public final LongOpenHashSet missingChunkPosSet = new LongOpenHashSet();
+		
+		/** @return false if the chunk wasn't in the batch or couldn't be read, in which case the normal read path should be used */
+		public boolean isKnown(long chunkPos) { return this.chunkDataByPos.containsKey(chunkPos) || this.missingChunkPosSet.contains(chunkPos); }
+		
+	}
+	
+	private static class RawChunk
+	{
+		public final ChunkPos pos;
+		public final int sectorNumber;
+		public final int sectorCount;
+		
+		public byte compressionType;
+		public byte[] data;
+		
+		public RawChunk(ChunkPos pos, int sectorNumber, int sectorCount)
+		{
+			this.pos = pos;
+			this.sectorNumber = sectorNumber;
+			this.sectorCount = sectorCount;
+		}
+		
+	}
+	
+}
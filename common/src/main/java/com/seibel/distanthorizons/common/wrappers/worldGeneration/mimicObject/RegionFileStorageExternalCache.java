@@ -1,7 +1,7 @@
 package com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject;
 
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.NbtIo;
 import net.minecraft.world.level.ChunkPos;
@@ -14,9 +14,19 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Keeps a small number of {@link RegionFile}s open so world generator threads
+ * can read pre-existing chunks without going through Minecraft's (non thread safe) region cache. <br><br>
+ *
+ * Files are looked up by their region position, hits only require a read lock
+ * so any number of generator threads can read at once.
+ * Files are evicted using the clock algorithm and are reference counted,
+ * so a file won't be closed while another thread is still reading from it.
+ */
 public class RegionFileStorageExternalCache implements AutoCloseable
 {
 	private static final Logger LOGGER = DhLoggerBuilder.getLogger();
@@ -26,11 +36,20 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 	
 	public static boolean regionCacheNullPointerWarningSent = false;
 	
-	/**
-	 * Present to reduce the chance that we accidentally break underlying MC code that isn't thread safe, 
-	 * specifically: "it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap.getAndMoveToFirst()"
+	/** 
+	 * Write locked when adding or evicting files. <br>
+	 * Cache hits only need the read lock.
 	 */
-	ReentrantLock getRegionFileLock = new ReentrantLock();
+	private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+	private final Long2ObjectOpenHashMap<RegionFileCache> regionFileByPos = new Long2ObjectOpenHashMap<>(MAX_CACHE_SIZE);
+	/** the clock used for eviction, each slot is either null or also present in {@link RegionFileStorageExternalCache#regionFileByPos} */
+	private final RegionFileCache[] clockSlots = new RegionFileCache[MAX_CACHE_SIZE];
+	private int clockHandIndex = 0;
+	private boolean closed = false;
+	
+	public final LongAdder hitCount = new LongAdder();
+	public final LongAdder missCount = new LongAdder();
+	public final LongAdder evictionCount = new LongAdder();
 	
 	
 	
@@ -38,6 +57,10 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 	{
 		public final long pos;
 		public final RegionFile file;
+		/** set whenever the file is used, cleared as the clock hand passes */
+		public volatile boolean recentlyUsed = true;
+		/** starts at 1, representing the cache's own reference */
+		private final AtomicInteger referenceCount = new AtomicInteger(1);
 		
 		public RegionFileCache(long pos, RegionFile file)
 		{
@@ -45,145 +68,228 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 			this.file = file;
 		}
 		
-	}
-	
-	
-	
-	public ConcurrentLinkedQueue<RegionFileCache> regionFileCache = new ConcurrentLinkedQueue<>();
-	
-	public RegionFileStorageExternalCache(RegionFileStorage storage) { this.storage = storage; }
-	
-	@Nullable
-	public RegionFile getRegionFile(ChunkPos pos) throws IOException
-	{
-		long posLong = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
-		RegionFile rFile = null;
-		
-		// Check vanilla cache
-		int retryCount = 0;
-		int maxRetryCount = 8;
-		while (retryCount < maxRetryCount)
+		/** @return false if the file has already been closed */
+		public boolean tryAcquire()
 		{
-			retryCount++;
-			
-			try
+			while (true)
 			{
-				this.getRegionFileLock.lock();
-				
-				#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
-				rFile = this.storage.getRegionFile(pos);
-				
-				// keeping the region cache size low helps prevent concurrency issues
-				if (this.storage.regionCache.size() > 150) // max 256
+				int count = this.referenceCount.get();
+				if (count <= 0)
 				{
-					RegionFile removedFile = this.storage.regionCache.removeLast();
-					if (removedFile != null)
-					{
-						removedFile.close();
-					}
+					return false;
+				}
+				else if (this.referenceCount.compareAndSet(count, count + 1))
+				{
+					this.recentlyUsed = true;
+					return true;
 				}
-				#else
-				rFile = this.storage.regionCache.getOrDefault(posLong, null);	
-				#endif
-				
-				break;
 			}
-			catch (ArrayIndexOutOfBoundsException e)
+		}
+		
+		/** closes the file once both the cache and every reader have released it */
+		public void release()
+		{
+			if (this.referenceCount.decrementAndGet() == 0)
 			{
-				#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
-				// the file just wasn't cached
-				break;
-				#else
-				// potential concurrency issue, wait a second and try to get the file again
 				try
 				{
-					Thread.sleep(250);
+					this.file.close();
 				}
-				catch (InterruptedException ignored)
+				catch (IOException e)
 				{
+					LOGGER.warn("Unable to close region file ["+this.pos+"], error: "+e.getMessage(), e);
 				}
-				#endif
-			}
-			catch (NullPointerException e)
-			{
-				// Can sometimes happen when other mods modify the region cache system (IE C2ME)
-				// instead of blowing up, just use DH's cache instead
-				
-				if (!regionCacheNullPointerWarningSent)
-				{
-					regionCacheNullPointerWarningSent = true;
-					LOGGER.warn("Unable to access Minecraft's chunk cache. This may be due to another mod changing said cache. Falling back to DH's internal cache.");
-				}
-				
-				break;
-			}
-			finally
-			{
-				this.getRegionFileLock.unlock();
 			}
 		}
 		
-		if (retryCount >= maxRetryCount)
-		{
-			BatchGenerationEnvironment.LOAD_LOGGER.warn("Concurrency issue detected when getting region file for chunk at " + pos + ".");
-		}
+	}
+	
+	
+	
+	public RegionFileStorageExternalCache(RegionFileStorage storage) { this.storage = storage; }
+	
+	
+	
+	/**
+	 * The returned file must be passed to {@link RegionFileStorageExternalCache#releaseRegionFile(RegionFileCache)}
+	 * once the caller is done with it.
+	 * 
+	 * @return null if no region file exists for the given chunk
+	 */
+	@Nullable
+	RegionFileCache acquireRegionFile(ChunkPos pos) throws IOException
+	{
+		long posLong = ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ());
 		
 		
-		if (rFile != null)
+		// Check vanilla cache
+		#if MC_VER != MC_1_16_5 && MC_VER != MC_1_17_1
+		// older versions would need RegionFileStorage.getRegionFile(),
+		// which modifies the vanilla cache and isn't safe to call off the server thread
+		RegionFile vanillaFile = this.tryGetVanillaRegionFile(posLong);
+		if (vanillaFile != null)
 		{
-			return rFile;
+			this.hitCount.increment();
+			
+			// vanilla files are owned (and closed) by Minecraft, so the reference count is irrelevant
+			RegionFileCache vanillaCache = new RegionFileCache(posLong, vanillaFile);
+			vanillaCache.referenceCount.set(Integer.MAX_VALUE);
+			return vanillaCache;
 		}
+		#endif
+		
 		
 		// Then check our custom cache
-		for (RegionFileCache cache : this.regionFileCache)
+		this.cacheLock.readLock().lock();
+		try
 		{
-			if (cache.pos == posLong)
+			RegionFileCache cache = this.regionFileByPos.get(posLong);
+			if (cache != null && cache.tryAcquire())
 			{
-				return cache.file;
+				this.hitCount.increment();
+				return cache;
 			}
 		}
+		finally
+		{
+			this.cacheLock.readLock().unlock();
+		}
+		
 		
 		// Otherwise, check if file exist, and if so, add it to the cache
-		Path storageFolderPath;
+		this.cacheLock.writeLock().lock();
+		try
+		{
+			if (this.closed)
+			{
+				return null;
+			}
+			
+			// another thread may have opened the file while we were waiting for the lock
+			RegionFileCache cache = this.regionFileByPos.get(posLong);
+			if (cache != null && cache.tryAcquire())
+			{
+				this.hitCount.increment();
+				return cache;
+			}
+			
+			this.missCount.increment();
+			
+			Path storageFolderPath = this.getStorageFolderPath();
+			
+			// RegionFile will create the file if it doesn't exist, which we don't want to do for read only access
+			Path regionFilePath = storageFolderPath.resolve("r." + pos.getRegionX() + "." + pos.getRegionZ() + ".mca");
+			if (!Files.exists(regionFilePath))
+			{
+				return null;
+			}
+			
+			RegionFile rFile;
+			#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
+			rFile = new RegionFile(regionFilePath.toFile(), storageFolderPath.toFile(), false);
+			#else
+			rFile = new RegionFile(regionFilePath, storageFolderPath, false);
+			#endif
+			
+			cache = new RegionFileCache(posLong, rFile);
+			this.insertIntoClock(cache);
+			this.regionFileByPos.put(posLong, cache);
+			
+			// this is a brand new file, nothing else can have released it yet
+			cache.tryAcquire();
+			return cache;
+		}
+		finally
+		{
+			this.cacheLock.writeLock().unlock();
+		}
+	}
+	
+	void releaseRegionFile(RegionFileCache cache) { cache.release(); }
+	
+	public Path getStorageFolderPath()
+	{
 		#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
-		storageFolderPath = this.storage.folder.toPath();
+		return this.storage.folder.toPath();
 		#else
-		storageFolderPath = this.storage.folder;
+		return this.storage.folder;
 		#endif
-		
-		if (!Files.exists(storageFolderPath))
+	}
+	
+	#if MC_VER != MC_1_16_5 && MC_VER != MC_1_17_1
+	/** 
+	 * Minecraft's cache isn't thread safe, but this is a read only access, 
+	 * if the server thread is modifying the cache at the same time we just fall back to our own cache.
+	 */
+	@Nullable
+	private RegionFile tryGetVanillaRegionFile(long posLong)
+	{
+		try
 		{
+			return this.storage.regionCache.getOrDefault(posLong, null);
+		}
+		catch (ArrayIndexOutOfBoundsException e)
+		{
+			// the vanilla cache was being modified while we read it
 			return null;
 		}
-		
-		Path regionFilePath = storageFolderPath.resolve("r." + pos.getRegionX() + "." + pos.getRegionZ() + ".mca");
-		#if MC_VER == MC_1_16_5 || MC_VER == MC_1_17_1
-		rFile = new RegionFile(regionFilePath.toFile(), storageFolderPath.toFile(), false);
-		#else
-		rFile = new RegionFile(regionFilePath, storageFolderPath, false);
-		#endif
-		
-		this.regionFileCache.add(new RegionFileCache(ChunkPos.asLong(pos.getRegionX(), pos.getRegionZ()), rFile));
-		while (this.regionFileCache.size() > MAX_CACHE_SIZE)
+		catch (NullPointerException e)
 		{
-			this.regionFileCache.poll().file.close();
+			// Can sometimes happen when other mods modify the region cache system (IE C2ME)
+			// instead of blowing up, just use DH's cache instead
+			
+			if (!regionCacheNullPointerWarningSent)
+			{
+				regionCacheNullPointerWarningSent = true;
+				LOGGER.warn("Unable to access Minecraft's chunk cache. This may be due to another mod changing said cache. Falling back to DH's internal cache.");
+			}
+			
+			return null;
+		}
+	}
+	#endif
+	
+	/** must be called while holding the write lock */
+	private void insertIntoClock(RegionFileCache newCache)
+	{
+		while (true)
+		{
+			RegionFileCache slotCache = this.clockSlots[this.clockHandIndex];
+			if (slotCache == null)
+			{
+				break;
+			}
+			else if (slotCache.recentlyUsed)
+			{
+				// give recently used files a second chance
+				slotCache.recentlyUsed = false;
+				this.clockHandIndex = (this.clockHandIndex + 1) % MAX_CACHE_SIZE;
+			}
+			else
+			{
+				this.regionFileByPos.remove(slotCache.pos);
+				slotCache.release();
+				this.evictionCount.increment();
+				break;
+			}
 		}
 		
-		return rFile;
+		this.clockSlots[this.clockHandIndex] = newCache;
+		this.clockHandIndex = (this.clockHandIndex + 1) % MAX_CACHE_SIZE;
 	}
 	
 	
 	@Nullable
 	public CompoundTag read(ChunkPos pos) throws IOException
 	{
-		RegionFile file = this.getRegionFile(pos);
-		if (file == null)
+		RegionFileCache cache = this.acquireRegionFile(pos);
+		if (cache == null)
 		{
 			return null;
 		}
 		
 		
-		try (DataInputStream stream = file.getChunkDataInputStream(pos))
+		try (DataInputStream stream = cache.file.getChunkDataInputStream(pos))
 		{
 			if (stream == null)
 			{
@@ -196,17 +302,40 @@ public class RegionFileStorageExternalCache implements AutoCloseable
 		{
 			return null;
 		}
+		finally
+		{
+			this.releaseRegionFile(cache);
+		}
 	}
 	
+	public String getStatsString() { return "hits: " + this.hitCount.sum() + ", misses: " + this.missCount.sum() + ", evictions: " + this.evictionCount.sum(); }
+	
 	
 	@Override
 	public void close() throws IOException
 	{
-		RegionFileCache cache;
-		while ((cache = this.regionFileCache.poll()) != null)
+		this.cacheLock.writeLock().lock();
+		try
 		{
-			cache.file.close();
+			this.closed = true;
+			for (int i = 0; i < MAX_CACHE_SIZE; i++)
+			{
+				RegionFileCache cache = this.clockSlots[i];
+				if (cache != null)
+				{
+					// files still being read will be closed once their reader releases them
+					cache.release();
+					this.clockSlots[i] = null;
+				}
+			}
+			this.regionFileByPos.clear();
 		}
+		finally
+		{
+			this.cacheLock.writeLock().unlock();
+		}
+		
+		LOGGER.debug("Region file cache closed, " + this.getStatsString());
 	}
 	
 	
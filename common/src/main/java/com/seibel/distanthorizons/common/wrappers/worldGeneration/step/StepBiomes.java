@@ -24,7 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import net.minecraft.server.level.WorldGenRegion;
 #if MC_VER < MC_1_19_2
@@ -48,7 +48,7 @@ public final class StepBiomes
 	
 	
 	public void generateGroup(
-			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			WorldGenStructFeatManager structFeat, WorldGenRegion worldGenRegion,
 			List<ChunkWrapper> chunkWrappers)
 	{
 		
@@ -69,13 +69,13 @@ public final class StepBiomes
 			environment.params.generator.createBiomes(environment.params.biomes, chunk);
 			#elif MC_VER < MC_1_19_2
 			chunk = environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#elif MC_VER < MC_1_19_4
 			chunk = environment.joinSync(environment.params.generator.createBiomes(environment.params.biomes, Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#else
 			chunk = environment.joinSync(environment.params.generator.createBiomes(Runnable::run, environment.params.randomState, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#endif
 		}
 	}
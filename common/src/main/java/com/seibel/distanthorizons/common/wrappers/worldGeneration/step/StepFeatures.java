@@ -19,24 +19,39 @@
 
 package com.seibel.distanthorizons.common.wrappers.worldGeneration.step;
 
+import java.lang.invoke.MethodHandles;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.DhLitWorldGenRegion;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
+import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
 import com.seibel.distanthorizons.core.util.gridList.ArrayGridList;
+import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
 
 import net.minecraft.ReportedException;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.ChunkAccess;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.ProtoChunk;
 import net.minecraft.world.level.levelgen.Heightmap;
-#if MC_VER >= MC_1_18_2
-#endif
 
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decorating a chunk can write to any chunk directly around it,
+ * so when run in parallel the chunks are split into 9 waves where every chunk is 3 chunks apart
+ * from the other chunks in its wave. Each wave is decorated in parallel and finished before the next wave starts. <br>
+ * Each parallel chunk is decorated through its own region (see {@link DhLitWorldGenRegion#forChunk}),
+ * which limits its writes to the chunks directly around it.
+ */
 public final class StepFeatures
 {
+	private static final Logger LOGGER = DhLoggerBuilder.getLogger(MethodHandles.lookup().lookupClass().getSimpleName());
+	
 	public static final ChunkStatus STATUS = ChunkStatus.FEATURES;
 	
 	private final BatchGenerationEnvironment environment;
@@ -47,9 +62,10 @@ public final class StepFeatures
 	
 	
 	
+	/** @param allowParallel if false the chunks will be decorated one at a time on the calling thread */
 	public void generateGroup(
-			ThreadedParameters tParams, DhLitWorldGenRegion worldGenRegion,
-			ArrayGridList<ChunkWrapper> chunkWrappers)
+			WorldGenStructFeatManager structFeat, DhLitWorldGenRegion worldGenRegion,
+			ArrayGridList<ChunkWrapper> chunkWrappers, boolean allowParallel)
 	{
 		ArrayList<ChunkAccess> chunksToDo = new ArrayList<ChunkAccess>();
 		
@@ -61,28 +77,116 @@ public final class StepFeatures
 			chunksToDo.add(chunk);
 		}
 		
+		#if MC_VER < MC_1_18_2
+		// the region's center is overridden for each chunk, so only one chunk can be decorated at a time
+		allowParallel = false;
+		#endif
+		
+		if (!allowParallel || chunksToDo.size() <= 1)
+		{
+			for (ChunkAccess chunk : chunksToDo)
+			{
+				this.decorateChunk(structFeat, worldGenRegion, chunk);
+			}
+			return;
+		}
+		
+		
+		ArrayList<ArrayList<ChunkAccess>> waves = new ArrayList<>(9);
+		for (int i = 0; i < 9; i++)
+		{
+			waves.add(new ArrayList<>());
+		}
 		for (ChunkAccess chunk : chunksToDo)
 		{
-			try
+			ChunkPos chunkPos = chunk.getPos();
+			waves.get(Math.floorMod(chunkPos.x, 3) * 3 + Math.floorMod(chunkPos.z, 3)).add(chunk);
+		}
+		
+		for (ArrayList<ChunkAccess> wave : waves)
+		{
+			this.decorateWave(structFeat, worldGenRegion, wave);
+		}
+	}
+	
+	private void decorateWave(WorldGenStructFeatManager structFeat, DhLitWorldGenRegion worldGenRegion, ArrayList<ChunkAccess> wave)
+	{
+		if (wave.size() <= 1)
+		{
+			// not worth handing off to another thread
+			for (ChunkAccess chunk : wave)
 			{
-				#if MC_VER < MC_1_18_2
-				worldGenRegion.setOverrideCenter(chunk.getPos());
-				environment.params.generator.applyBiomeDecoration(worldGenRegion, tParams.structFeat);
-				#else
-				environment.params.generator.applyBiomeDecoration(worldGenRegion, chunk,
-						tParams.structFeat.forWorldGenRegion(worldGenRegion));
-				#endif
-				
-				Heightmap.primeHeightmaps(chunk, STATUS.heightmapsAfter());
-				BatchGenerationEnvironment.clearDistantGenerationMixinData();
+				this.decorateChunk(structFeat, worldGenRegion, chunk);
 			}
-			catch (ReportedException e)
+			return;
+		}
+		
+		CompletableFuture<?>[] chunkFutures = new CompletableFuture[wave.size()];
+		for (int i = 0; i < wave.size(); i++)
+		{
+			ChunkAccess chunk = wave.get(i);
+			// the shared region can write to the whole grid and its state isn't thread safe
+			DhLitWorldGenRegion chunkRegion = worldGenRegion.forChunk(chunk.getPos());
+			chunkFutures[i] = CompletableFuture.runAsync(() ->
+			{
+				BatchGenerationEnvironment.isDistantGeneratorThread.set(true);
+				try
+				{
+					this.decorateChunk(structFeat, chunkRegion, chunk);
+				}
+				finally
+				{
+					BatchGenerationEnvironment.isDistantGeneratorThread.remove();
+				}
+			}, BatchGenerationEnvironment.getParallelStepPool());
+		}
+		
+		try
+		{
+			CompletableFuture.allOf(chunkFutures).get();
+		}
+		catch (InterruptedException e)
+		{
+			// stop any chunks that haven't started yet
+			for (CompletableFuture<?> chunkFuture : chunkFutures)
+			{
+				chunkFuture.cancel(false);
+			}
+			Thread.currentThread().interrupt();
+			UncheckedInterruptedException.throwIfInterrupted();
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
 			{
-				e.printStackTrace();
-				// FIXME: Features concurrent modification issue. Something about cocobeans might just
-				// error out. For now just retry.
+				throw (RuntimeException) cause;
 			}
+			throw new RuntimeException(cause);
+		}
+	}
+	
+	private void decorateChunk(WorldGenStructFeatManager structFeat, DhLitWorldGenRegion worldGenRegion, ChunkAccess chunk)
+	{
+		try
+		{
+			#if MC_VER < MC_1_18_2
+			worldGenRegion.setOverrideCenter(chunk.getPos());
+			environment.params.generator.applyBiomeDecoration(worldGenRegion, structFeat);
+			#else
+			environment.params.generator.applyBiomeDecoration(worldGenRegion, chunk,
+					structFeat.forWorldGenRegion(worldGenRegion));
+			#endif
+			
+			Heightmap.primeHeightmaps(chunk, STATUS.heightmapsAfter());
+			BatchGenerationEnvironment.clearDistantGenerationMixinData();
+		}
+		catch (ReportedException e)
+		{
+			// FIXME: Features concurrent modification issue. Something about cocobeans might just error out.
+			// the chunk is still used, it will just be missing some of its features
+			LOGGER.error("Unable to decorate chunk [" + chunk.getPos() + "], error: " + e.getMessage(), e);
 		}
 	}
 	
-}
\ No newline at end of file
+}
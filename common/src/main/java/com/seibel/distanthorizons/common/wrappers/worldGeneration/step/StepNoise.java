@@ -24,7 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import com.seibel.distanthorizons.core.util.objects.UncheckedInterruptedException;
 import net.minecraft.server.level.WorldGenRegion;
@@ -52,7 +52,7 @@ public final class StepNoise
 	
 	
 	public void generateGroup(
-			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			WorldGenStructFeatManager structFeat, WorldGenRegion worldGenRegion,
 			List<ChunkWrapper> chunkWrappers)
 	{
 		
@@ -70,16 +70,16 @@ public final class StepNoise
 		{
 			// System.out.println("StepNoise: "+chunk.getPos());
 			#if MC_VER < MC_1_17_1
-			environment.params.generator.fillFromNoise(worldGenRegion, tParams.structFeat, chunk);
+			environment.params.generator.fillFromNoise(worldGenRegion, structFeat, chunk);
 			#elif MC_VER < MC_1_18_2
 			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run,
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#elif MC_VER < MC_1_19_2
 			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion),
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#else
 			chunk = environment.joinSync(environment.params.generator.fillFromNoise(Runnable::run, Blender.of(worldGenRegion), environment.params.randomState,
-					tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk));
+					structFeat.forWorldGenRegion(worldGenRegion), chunk));
 			#endif
 			UncheckedInterruptedException.throwIfInterrupted();
 		}
@@ -24,7 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import net.minecraft.server.level.WorldGenRegion;
 #if MC_VER < MC_1_19_2
@@ -46,7 +46,7 @@ public final class StepStructureReference
 	
 	
 	public void generateGroup(
-			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			WorldGenStructFeatManager structFeat, WorldGenRegion worldGenRegion,
 			List<ChunkWrapper> chunkWrappers)
 	{
 		
@@ -63,7 +63,11 @@ public final class StepStructureReference
 		for (ChunkAccess chunk : chunksToDo)
 		{
 			// System.out.println("StepStructureReference: "+chunk.getPos());
-			this.environment.params.generator.createReferences(worldGenRegion, tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk);
+			if (!this.environment.structureStartCache.tryLoadReferences(chunk))
+			{
+				this.environment.params.generator.createReferences(worldGenRegion, structFeat.forWorldGenRegion(worldGenRegion), chunk);
+				this.environment.structureStartCache.saveReferences(chunk);
+			}
 		}
 	}
 	
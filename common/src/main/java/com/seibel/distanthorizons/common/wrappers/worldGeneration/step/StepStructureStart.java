@@ -25,21 +25,44 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.DhWorldGenSettings;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import com.seibel.distanthorizons.core.logging.DhLoggerBuilder;
 import net.minecraft.server.level.WorldGenRegion;
+import net.minecraft.world.level.ChunkPos;
 import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.chunk.ChunkGenerator;
 import net.minecraft.world.level.chunk.ChunkStatus;
 import net.minecraft.world.level.chunk.ProtoChunk;
+import net.minecraft.world.level.levelgen.DebugLevelSource;
+import net.minecraft.world.level.levelgen.FlatLevelSource;
+import net.minecraft.world.level.levelgen.NoiseBasedChunkGenerator;
 import org.apache.logging.log4j.Logger;
 
 public final class StepStructureStart
 {
 	private static final Logger LOGGER = DhLoggerBuilder.getLogger();
 	private static final ChunkStatus STATUS = ChunkStatus.STRUCTURE_STARTS;
+	/** used for generators that may not be thread safe, shared between every level since modded generators may have global state */
 	private static final ReentrantLock STRUCTURE_PLACEMENT_LOCK = new ReentrantLock();
 	
+	/** must be a power of two */
+	private static final int LOCK_STRIPE_COUNT = 64;
+	/** 
+	 * Used for vanilla generators, which vanilla already runs on multiple threads at once. <br>
+	 * Chunks are striped by region so the same chunk position is never placed by two events at once.
+	 */
+	private static final ReentrantLock[] STRIPED_PLACEMENT_LOCKS = new ReentrantLock[LOCK_STRIPE_COUNT];
+	static
+	{
+		for (int i = 0; i < LOCK_STRIPE_COUNT; i++)
+		{
+			STRIPED_PLACEMENT_LOCKS[i] = new ReentrantLock();
+		}
+	}
+	
 	private final BatchGenerationEnvironment environment;
 	
 	
@@ -61,8 +84,40 @@ public final class StepStructureStart
 		
 	}
 	
+	/** 
+	 * @return true if structures can be placed by multiple threads at once. 
+	 * Only vanilla generators are known to be safe, anything else uses a global lock.
+	 */
+	public static boolean canPlaceConcurrently(ChunkGenerator generator)
+	{
+		// can be disabled if a mod modifies vanilla's structure placement in a way that isn't thread safe
+		if (!DhWorldGenSettings.useStripedStructureLocking)
+		{
+			return false;
+		}
+		
+		// subclasses may add their own state, so only the exact vanilla classes are trusted
+		Class<?> generatorClass = generator.getClass();
+		return generatorClass == NoiseBasedChunkGenerator.class
+				|| generatorClass == FlatLevelSource.class
+				|| generatorClass == DebugLevelSource.class;
+	}
+	
+	private static ReentrantLock getPlacementLock(ChunkPos chunkPos, boolean canPlaceConcurrently)
+	{
+		if (!canPlaceConcurrently)
+		{
+			return STRUCTURE_PLACEMENT_LOCK;
+		}
+		
+		int regionX = chunkPos.x >> 5;
+		int regionZ = chunkPos.z >> 5;
+		int hash = (regionX * 31) ^ (regionZ * 0x9E3779B9);
+		return STRIPED_PLACEMENT_LOCKS[(hash ^ (hash >>> 16)) & (LOCK_STRIPE_COUNT - 1)];
+	}
+	
 	public void generateGroup(
-			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			ThreadedParameters tParams, WorldGenStructFeatManager structFeat, WorldGenRegion worldGenRegion,
 			List<ChunkWrapper> chunkWrappers) throws InterruptedException
 	{
 		ArrayList<ChunkAccess> chunksToDo = new ArrayList<>();
@@ -86,6 +141,7 @@ public final class StepStructureStart
 		if (environment.params.worldOptions.generateStructures())
 		{
 		#endif
+			boolean canPlaceConcurrently = canPlaceConcurrently(environment.params.generator);
 			for (ChunkAccess chunk : chunksToDo)
 			{
 				// System.out.println("StepStructureStart: "+chunk.getPos());
@@ -94,23 +150,38 @@ public final class StepStructureStart
 				// hopefully allowing interrupts here will prevent that from happening.
 				BatchGenerationEnvironment.throwIfThreadInterrupted();
 				
-				// hopefully this shouldn't cause any performance issues (this step is generally quite quick so hopefully it should be fine)
-				// and should prevent some concurrency issues
-				STRUCTURE_PLACEMENT_LOCK.lock();
-				
-				#if MC_VER < MC_1_19_2
-				environment.params.generator.createStructures(environment.params.registry, tParams.structFeat, chunk, environment.params.structures,
-						environment.params.worldSeed);
-				#elif MC_VER < MC_1_19_4
-				environment.params.generator.createStructures(environment.params.registry, environment.params.randomState, tParams.structFeat, chunk, environment.params.structures,
-						environment.params.worldSeed);
-				#else
-				environment.params.generator.createStructures(environment.params.registry,
-						environment.params.level.getChunkSource().getGeneratorState(),
-						tParams.structFeat, chunk, environment.params.structures);
-				#endif
+				// structures are expensive to place, re-use them if this chunk was generated before.
+				// The cache is read and written outside the placement lock so other threads don't have to wait on the disk
+				boolean loadedFromCache = environment.structureStartCache.tryLoadStarts(chunk);
+				if (!loadedFromCache)
+				{
+					// prevents concurrency issues in generators that aren't thread safe
+					ReentrantLock placementLock = getPlacementLock(chunk.getPos(), canPlaceConcurrently);
+					placementLock.lock();
+					try
+					{
+						#if MC_VER < MC_1_19_2
+						environment.params.generator.createStructures(environment.params.registry, structFeat, chunk, environment.params.structures,
+								environment.params.worldSeed);
+						#elif MC_VER < MC_1_19_4
+						environment.params.generator.createStructures(environment.params.registry, environment.params.randomState, structFeat, chunk, environment.params.structures,
+								environment.params.worldSeed);
+						#else
+						environment.params.generator.createStructures(environment.params.registry,
+								environment.params.level.getChunkSource().getGeneratorState(),
+								structFeat, chunk, environment.params.structures);
+						#endif
+					}
+					finally
+					{
+						placementLock.unlock();
+					}
+					
+					environment.structureStartCache.saveStarts(chunk);
+				}
 				
 				#if MC_VER >= MC_1_18_2
+				// the structure check has its own locking, see SharedStructureCheck
 				try
 				{
 					tParams.structCheck.onStructureLoad(chunk.getPos(), chunk.getAllStarts());
@@ -122,7 +193,7 @@ public final class StepStructureStart
 					// TODO: Figure out in the future why this happens even though I am using new structFeat - OLD
 					
 					// reset the structureStart
-					tParams.recreateStructureCheck();
+					tParams.recreateStructureCheck(chunk.getPos());
 					
 					try
 					{
@@ -137,10 +208,7 @@ public final class StepStructureStart
 						//throw new StepStructureStart.StructStartCorruptedException(secondEx);
 					}
 				}
-				
 				#endif
-				
-				STRUCTURE_PLACEMENT_LOCK.unlock();
 			}
 		}
 	}
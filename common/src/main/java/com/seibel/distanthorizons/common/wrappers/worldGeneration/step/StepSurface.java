@@ -24,7 +24,7 @@ import java.util.List;
 
 import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
 import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
-import com.seibel.distanthorizons.common.wrappers.worldGeneration.ThreadedParameters;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.mimicObject.WorldGenStructFeatManager;
 
 import net.minecraft.server.level.WorldGenRegion;
 import net.minecraft.world.level.chunk.ChunkAccess;
@@ -45,7 +45,7 @@ public final class StepSurface
 	
 	
 	public void generateGroup(
-			ThreadedParameters tParams, WorldGenRegion worldGenRegion,
+			WorldGenStructFeatManager structFeat, WorldGenRegion worldGenRegion,
 			List<ChunkWrapper> chunkWrappers)
 	{
 		ArrayList<ChunkAccess> chunksToDo = new ArrayList<>();
@@ -64,9 +64,9 @@ public final class StepSurface
 			#if MC_VER < MC_1_18_2
 			environment.params.generator.buildSurfaceAndBedrock(worldGenRegion, chunk);
 			#elif MC_VER < MC_1_19_2
-			environment.params.generator.buildSurface(worldGenRegion, tParams.structFeat.forWorldGenRegion(worldGenRegion), chunk);
+			environment.params.generator.buildSurface(worldGenRegion, structFeat.forWorldGenRegion(worldGenRegion), chunk);
 			#else
-			environment.params.generator.buildSurface(worldGenRegion, tParams.structFeat.forWorldGenRegion(worldGenRegion), environment.params.randomState, chunk);
+			environment.params.generator.buildSurface(worldGenRegion, structFeat.forWorldGenRegion(worldGenRegion), environment.params.randomState, chunk);
 			#endif
 		}
 	}
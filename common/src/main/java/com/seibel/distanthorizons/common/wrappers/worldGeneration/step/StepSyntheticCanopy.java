@@ -0,0 +1,225 @@
+/*
+ *    This file is part of the Distant Horizons mod
+ *    licensed under the GNU LGPL v3 License.
+ *
+ *    Copyright (C) 2020-2023 James Seibel
+ *
+ *    This program is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU Lesser General Public License as published by
+ *    the Free Software Foundation, version 3.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU Lesser General Public License for more details.
+ *
+ *    You should have received a copy of the GNU Lesser General Public License
+ *    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package com.seibel.distanthorizons.common.wrappers.worldGeneration.step;
+
+import java.util.List;
+import java.util.Optional;
+#if MC_VER < MC_1_19_2
+import java.util.Random;
+#endif
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import com.seibel.distanthorizons.common.wrappers.chunk.ChunkWrapper;
+import com.seibel.distanthorizons.common.wrappers.worldGeneration.BatchGenerationEnvironment;
+
+import net.minecraft.core.BlockPos;
+#if MC_VER >= MC_1_18_2
+import net.minecraft.core.Holder;
+import net.minecraft.core.QuartPos;
+import net.minecraft.tags.BiomeTags;
+#endif
+import net.minecraft.util.Mth;
+#if MC_VER >= MC_1_19_2
+import net.minecraft.util.RandomSource;
+#endif
+import net.minecraft.world.level.biome.Biome;
+import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.chunk.ChunkAccess;
+import net.minecraft.world.level.levelgen.Heightmap;
+import net.minecraft.world.level.levelgen.feature.ConfiguredFeature;
+import net.minecraft.world.level.levelgen.feature.configurations.TreeConfiguration;
+
+/**
+ * Stamps simple trees onto chunks that weren't decorated by {@link StepFeatures},
+ * so forests are still visible in the LODs. <br><br>
+ *
+ * Each chunk is split into 4x4 cells, each of which may get a single trunk topped with a small block of leaves.
+ * The blocks and height are taken from the biome's first tree feature
+ * and the placement is derived from the world seed, so the result is always the same for a given world. <br>
+ * Since features aren't run, this won't match the trees vanilla would generate.
+ */
+public final class StepSyntheticCanopy
+{
+	private static final int CELL_WIDTH = 4;
+	
+	/** the chance each cell has a tree in forest, jungle, and taiga biomes */
+	private static final double FOREST_TREE_CHANCE = 0.6;
+	/** the chance each cell has a tree in any other biome that has tree features, IE plains */
+	private static final double SPARSE_TREE_CHANCE = 0.03;
+	
+	private final BatchGenerationEnvironment environment;
+	/** empty if the biome doesn't have any trees */
+	private final ConcurrentHashMap<Biome, Optional<CanopyInfo>> canopyInfoByBiome = new ConcurrentHashMap<>();
+	
+	
+	
+	public StepSyntheticCanopy(BatchGenerationEnvironment batchGenerationEnvironment) { this.environment = batchGenerationEnvironment; }
+	
+	
+	
+	public void generateGroup(List<ChunkWrapper> chunkWrappers)
+	{
+		BlockPos.MutableBlockPos mutablePos = new BlockPos.MutableBlockPos();
+		for (ChunkWrapper chunkWrapper : chunkWrappers)
+		{
+			ChunkAccess chunk = chunkWrapper.getChunk();
+			int chunkMinX = chunk.getPos().getMinBlockX();
+			int chunkMinZ = chunk.getPos().getMinBlockZ();
+			
+			for (int cellZ = 0; cellZ < 16; cellZ += CELL_WIDTH)
+			{
+				for (int cellX = 0; cellX < 16; cellX += CELL_WIDTH)
+				{
+					// deterministic per cell so neighboring chunks and repeated generation agree
+					long cellSeed = Mth.getSeed(chunkMinX + cellX, 0, chunkMinZ + cellZ) ^ this.environment.params.worldSeed;
+					#if MC_VER < MC_1_19_2
+					Random random = new Random(cellSeed);
+					#else
+					RandomSource random = RandomSource.create(cellSeed);
+					#endif
+					
+					int x = cellX + 1 + random.nextInt(CELL_WIDTH - 2);
+					int z = cellZ + 1 + random.nextInt(CELL_WIDTH - 2);
+					int surfaceY = chunk.getHeight(Heightmap.Types.WORLD_SURFACE_WG, x, z) + 1;
+					
+					BlockState groundState = chunk.getBlockState(mutablePos.set(x, surfaceY - 1, z));
+					if (groundState.isAir() || !groundState.getFluidState().isEmpty())
+					{
+						continue;
+					}
+					
+					Optional<CanopyInfo> canopyInfo = this.getCanopyInfo(chunk, chunkMinX + x, surfaceY, chunkMinZ + z);
+					if (!canopyInfo.isPresent() || random.nextDouble() >= canopyInfo.get().treeChance)
+					{
+						continue;
+					}
+					
+					stampTree(chunk, canopyInfo.get(), x, surfaceY, z, mutablePos);
+				}
+			}
+		}
+	}
+	
+	private static void stampTree(ChunkAccess chunk, CanopyInfo canopyInfo, int x, int surfaceY, int z, BlockPos.MutableBlockPos mutablePos)
+	{
+		int topY = surfaceY + canopyInfo.height - 1;
+		for (int y = surfaceY; y < topY; y++)
+		{
+			chunk.setBlockState(mutablePos.set(x, y, z), canopyInfo.trunkState, false);
+		}
+		
+		// a 3x3 block of leaves around the top of the trunk with one more leaf on top
+		for (int y = topY - 1; y <= topY; y++)
+		{
+			for (int offsetZ = -1; offsetZ <= 1; offsetZ++)
+			{
+				for (int offsetX = -1; offsetX <= 1; offsetX++)
+				{
+					int leafX = x + offsetX;
+					int leafZ = z + offsetZ;
+					if (leafX >= 0 && leafX < 16 && leafZ >= 0 && leafZ < 16)
+					{
+						chunk.setBlockState(mutablePos.set(leafX, y, leafZ), canopyInfo.leavesState, false);
+					}
+				}
+			}
+		}
+		chunk.setBlockState(mutablePos.set(x, topY + 1, z), canopyInfo.leavesState, false);
+	}
+	
+	private Optional<CanopyInfo> getCanopyInfo(ChunkAccess chunk, int blockX, int blockY, int blockZ)
+	{
+		#if MC_VER < MC_1_18_2
+		if (chunk.getBiomes() == null)
+		{
+			return Optional.empty();
+		}
+		Biome biome = chunk.getBiomes().getNoiseBiome(blockX >> 2, blockY >> 2, blockZ >> 2);
+		return this.canopyInfoByBiome.computeIfAbsent(biome, (newBiome) -> createCanopyInfo(newBiome, newBiome.getBiomeCategory() == Biome.BiomeCategory.FOREST
+				|| newBiome.getBiomeCategory() == Biome.BiomeCategory.JUNGLE
+				|| newBiome.getBiomeCategory() == Biome.BiomeCategory.TAIGA));
+		#else
+		Holder<Biome> biomeHolder = chunk.getNoiseBiome(QuartPos.fromBlock(blockX), QuartPos.fromBlock(blockY), QuartPos.fromBlock(blockZ));
+		return this.canopyInfoByBiome.computeIfAbsent(biomeHolder.value(), (newBiome) -> createCanopyInfo(newBiome, biomeHolder.is(BiomeTags.IS_FOREST)
+				|| biomeHolder.is(BiomeTags.IS_JUNGLE)
+				|| biomeHolder.is(BiomeTags.IS_TAIGA)));
+		#endif
+	}
+	
+	private static Optional<CanopyInfo> createCanopyInfo(Biome biome, boolean isForest)
+	{
+		#if MC_VER < MC_1_18_2
+		Stream<ConfiguredFeature<?, ?>> featureStream = biome.getGenerationSettings().features().stream()
+				.flatMap(List::stream)
+				.flatMap((featureSupplier) -> featureSupplier.get().getFeatures());
+		#else
+		Stream<ConfiguredFeature<?, ?>> featureStream = biome.getGenerationSettings().features().stream()
+				.flatMap((featureSet) -> featureSet.stream())
+				.flatMap((placedFeature) -> placedFeature.value().getFeatures());
+		#endif
+		
+		Optional<TreeConfiguration> treeConfig = featureStream
+				.map((feature) -> #if MC_VER < MC_1_18_2 feature.config #else feature.config() #endif)
+				.filter((config) -> config instanceof TreeConfiguration)
+				.map((config) -> (TreeConfiguration) config)
+				.findFirst();
+		if (!treeConfig.isPresent())
+		{
+			return Optional.empty();
+		}
+		
+		// a fixed seed so the same blocks are used every time
+		#if MC_VER < MC_1_19_2
+		Random random = new Random(0);
+		#else
+		RandomSource random = RandomSource.create(0);
+		#endif
+		BlockState trunkState = treeConfig.get().trunkProvider.getState(random, BlockPos.ZERO);
+		BlockState leavesState = treeConfig.get().foliageProvider.getState(random, BlockPos.ZERO);
+		int height = Mth.clamp(treeConfig.get().trunkPlacer.getTreeHeight(random), 3, 32);
+		return Optional.of(new CanopyInfo(trunkState, leavesState, height, isForest ? FOREST_TREE_CHANCE : SPARSE_TREE_CHANCE));
+	}
+	
+	
+	
+	//================//
+	// helper classes //
+	//================//
+	
+	private static class CanopyInfo
+	{
+		public final BlockState trunkState;
+		public final BlockState leavesState;
+		/** includes the top leaf */
+		public final int height;
+		public final double treeChance;
+		
+		public CanopyInfo(BlockState trunkState, BlockState leavesState, int height, double treeChance)
+		{
+			this.trunkState = trunkState;
+			this.leavesState = leavesState;
+			this.height = height;
+			this.treeChance = treeChance;
+		}
+		
+	}
+	
+}